@@ -1,15 +1,22 @@
 package de.flashheart.rlgagent;
 
-import com.pi4j.gpio.extension.mcp.MCP23017GpioProvider;
 import com.pi4j.io.gpio.GpioController;
 import com.pi4j.io.gpio.GpioFactory;
 import com.pi4j.io.i2c.I2CBus;
 import com.pi4j.io.i2c.I2CDevice;
 import com.pi4j.io.i2c.I2CFactory;
+import de.flashheart.rlgagent.hardware.DisplaySink;
+import de.flashheart.rlgagent.hardware.GpioMemBank;
+import de.flashheart.rlgagent.hardware.HD44780Sink;
+import de.flashheart.rlgagent.hardware.I2CBusManager;
 import de.flashheart.rlgagent.hardware.I2CLCD;
+import de.flashheart.rlgagent.hardware.Mcp23017Bank;
 import de.flashheart.rlgagent.hardware.MyLCD;
 import de.flashheart.rlgagent.hardware.MyPin;
+import de.flashheart.rlgagent.hardware.OutputBanks;
 import de.flashheart.rlgagent.hardware.PinHandler;
+import de.flashheart.rlgagent.hardware.SignalClock;
+import de.flashheart.rlgagent.hardware.SwingSink;
 import de.flashheart.rlgagent.misc.Configs;
 import de.flashheart.rlgagent.misc.Tools;
 import de.flashheart.rlgagent.ui.MyUI;
@@ -18,7 +25,10 @@ import org.apache.commons.cli.*;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 @Log4j2
@@ -33,16 +43,18 @@ public class Main {
     private static Optional<MyUI> myUI;
 
     private static Optional<GpioController> gpioController;
-    private static Optional<MCP23017GpioProvider> mcp23017_1;
     private static Optional<I2CBus> i2CBus;
-    private static Optional<I2CLCD> lcd_hardware;
+    private static Optional<I2CBusManager> i2CBusManager;
+    private static List<DisplaySink> display_sinks;
     private static PinHandler pinHandler;
+    private static OutputBanks outputBanks;
+    private static SignalClock signalClock;
 
     public static void main(String[] args) throws Exception {
         initBaseSystem(args);
         initHardware();
         initGameSystem();
-        agent = new RLGAgent(configs, myUI, gpioController, pinHandler, myLCD);
+        agent = new RLGAgent(configs, myUI, gpioController, pinHandler, myLCD, signalClock, i2CBusManager);
     }
 
     private static void initBaseSystem(String[] args) throws IOException, UnsupportedLookAndFeelException, ClassNotFoundException, InstantiationException, IllegalAccessException {
@@ -80,7 +92,9 @@ public class Main {
 
         configs = new Configs();
 
-        pinHandler = new PinHandler(configs);
+        signalClock = new SignalClock();
+        outputBanks = new OutputBanks();
+        pinHandler = new PinHandler(configs, signalClock, outputBanks);
         //pinHandler2 = new PinHandler2(configs, 25);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> agent.procShutdown(false)));
 
@@ -95,34 +109,36 @@ public class Main {
 
     private static void initGameSystem() {
 
-        pinHandler.add(new MyPin(Configs.OUT_LED_WHITE, configs, myUI, gpioController, mcp23017_1, -1, -1));
-        pinHandler.add(new MyPin(Configs.OUT_LED_RED, configs, myUI, gpioController, mcp23017_1, -1, -1));
-        pinHandler.add(new MyPin(Configs.OUT_LED_YELLOW, configs, myUI, gpioController, mcp23017_1, -1, -1));
-        pinHandler.add(new MyPin(Configs.OUT_LED_GREEN, configs, myUI, gpioController, mcp23017_1, -1, -1));
-        pinHandler.add(new MyPin(Configs.OUT_LED_BLUE, configs, myUI, gpioController, mcp23017_1, -1, -1));
-        pinHandler.add(new MyPin(Configs.OUT_SIREN1, configs, myUI, gpioController, mcp23017_1, 70, 90, configs.is(Configs.TRIGGER_ON_HIGH_SIREN1)));
-        pinHandler.add(new MyPin(Configs.OUT_SIREN2, configs, myUI, gpioController, mcp23017_1, 50, 90, configs.is(Configs.TRIGGER_ON_HIGH_SIREN2)));
-        pinHandler.add(new MyPin(Configs.OUT_SIREN3, configs, myUI, gpioController, mcp23017_1, 50, 75, configs.is(Configs.TRIGGER_ON_HIGH_SIREN3)));
-        pinHandler.add(new MyPin(Configs.OUT_SIREN4, configs, myUI, gpioController, mcp23017_1, 50, 67, configs.is(Configs.TRIGGER_ON_HIGH_SIREN4)));
-        pinHandler.add(new MyPin(Configs.OUT_BUZZER, configs, myUI, gpioController, mcp23017_1, 70, 60));
+        pinHandler.add(new MyPin(Configs.OUT_LED_WHITE, configs, myUI, gpioController, outputBanks, -1, -1));
+        pinHandler.add(new MyPin(Configs.OUT_LED_RED, configs, myUI, gpioController, outputBanks, -1, -1));
+        pinHandler.add(new MyPin(Configs.OUT_LED_YELLOW, configs, myUI, gpioController, outputBanks, -1, -1));
+        pinHandler.add(new MyPin(Configs.OUT_LED_GREEN, configs, myUI, gpioController, outputBanks, -1, -1));
+        pinHandler.add(new MyPin(Configs.OUT_LED_BLUE, configs, myUI, gpioController, outputBanks, -1, -1));
+        pinHandler.add(new MyPin(Configs.OUT_SIREN1, configs, myUI, gpioController, outputBanks, 70, 90, configs.is(Configs.TRIGGER_ON_HIGH_SIREN1)));
+        pinHandler.add(new MyPin(Configs.OUT_SIREN2, configs, myUI, gpioController, outputBanks, 50, 90, configs.is(Configs.TRIGGER_ON_HIGH_SIREN2)));
+        pinHandler.add(new MyPin(Configs.OUT_SIREN3, configs, myUI, gpioController, outputBanks, 50, 75, configs.is(Configs.TRIGGER_ON_HIGH_SIREN3)));
+        pinHandler.add(new MyPin(Configs.OUT_SIREN4, configs, myUI, gpioController, outputBanks, 50, 67, configs.is(Configs.TRIGGER_ON_HIGH_SIREN4)));
+        pinHandler.add(new MyPin(Configs.OUT_BUZZER, configs, myUI, gpioController, outputBanks, 70, 60));
 
     }
 
     /**
-     * we are working with 4 hardware abstractions here. they are all Optionals, because the agent may not be
+     * we are working with 3 hardware abstractions here. they are all Optionals, because the agent may not be
      * necessarily running on a Raspi.
      * <ul>
      *     <li>gpioController</li>
-     *     <li>i2CBus</li>
-     *     <li>lcd_hardware</li>
-     *     <li>mcp23017_1</li> - not currently in use by the rlgagent hat. "but we could if we wanted to"
+     *     <li>i2CBus</li> - owned by the i2CBusManager. all devices on the bus are accessed through it.
+     *     <li>display_sinks</li> - any number of HD44780 LCDs and the gui, if there is one
      * </ul>
+     * The outputs are collected in the outputBanks: the GPIO header and any number of MCP23017 port expanders (not
+     * currently in use by the rlgagent hat. "but we could if we wanted to")
      */
     private static void initHardware() {
         gpioController = Optional.empty();
         i2CBus = Optional.empty();
-        lcd_hardware = Optional.empty();
-        mcp23017_1 = Optional.empty();
+        i2CBusManager = Optional.empty();
+        display_sinks = new ArrayList<>();
+        myUI.ifPresent(ui -> display_sinks.add(new SwingSink(ui, Integer.parseInt(configs.get(Configs.LCD_COLS)), Integer.parseInt(configs.get(Configs.LCD_ROWS)))));
 
         if (Tools.isArm()) {
             gpioController = Optional.of(GpioFactory.getInstance());
@@ -132,33 +148,51 @@ public class Main {
                 log.warn(e);
                 i2CBus = Optional.empty();
             }
+            i2CBusManager = i2CBus.map(I2CBusManager::new);
 
-            // is a LCD available ?
-            i2CBus.ifPresent(i2CBus1 -> {
+            // write the GPIO header directly via the registers
+            String gpiomem = configs.get(Configs.GPIOMEM_DEVICE, "").trim();
+            if (!gpiomem.isEmpty()) {
                 try {
-                    I2CDevice device = i2CBus.get().getDevice(Integer.decode(configs.get(Configs.LCD_I2C_ADDRESS)));
-                    device.read(); // to make sure the device is available. Will produce an Exception otherwise.
-                    lcd_hardware = Optional.of(new I2CLCD(device));
-                    lcd_hardware.get().init();
-                    lcd_hardware.get().backlight(true);
+                    outputBanks.add(new GpioMemBank(new File(gpiomem)));
                 } catch (IOException e) {
-                    log.warn(e);
-                    lcd_hardware = Optional.empty();
+                    log.warn("{} not available, falling back to pi4j - {}", gpiomem, e.getMessage());
+                }
+            }
+
+            // are there LCDs available ? all of them show the same content.
+            i2CBusManager.ifPresent(busManager -> {
+                for (String address : configs.get(Configs.LCD_I2C_ADDRESS, "").trim().split("\\s+")) {
+                    if (address.isEmpty()) continue;
+                    try {
+                        I2CDevice device = busManager.getDevice(Integer.decode(address), I2CBusManager.Priority.DISPLAY);
+                        device.read(); // to make sure the device is available. Will produce an Exception otherwise.
+                        I2CLCD lcd = new I2CLCD(device, Integer.parseInt(configs.get(Configs.LCD_COLS)), Integer.parseInt(configs.get(Configs.LCD_ROWS)), configs.is(Configs.LCD_BULK_WRITES));
+                        lcd.init();
+                        lcd.backlight(true);
+                        display_sinks.add(new HD44780Sink("hd44780@" + address, lcd));
+                    } catch (IOException e) {
+                        log.warn("LCD {} - {}", address, e.getMessage());
+                    }
                 }
             });
 
-            // is a MCP23017 available ?
-            i2CBus.ifPresent(i2CBus1 -> {
-                try {
-                    mcp23017_1 = Optional.of(new MCP23017GpioProvider(i2CBus.get(), Integer.decode(configs.get(Configs.MCP23017_I2C_ADDRESS))));
-                } catch (IOException e) {
-                    log.warn(e);
-                    mcp23017_1 = Optional.empty();
+            // are there MCP23017s available ?
+            i2CBusManager.ifPresent(busManager -> {
+                for (String address : configs.get(Configs.MCP23017_I2C_ADDRESS, "").trim().split("\\s+")) {
+                    if (address.isEmpty()) continue;
+                    try {
+                        I2CBusManager.Device device = busManager.getDevice(Integer.decode(address), I2CBusManager.Priority.SIGNAL);
+                        device.read(); // to make sure the device is available. Will produce an Exception otherwise.
+                        outputBanks.add(new Mcp23017Bank(device, Integer.decode(address)));
+                    } catch (IOException e) {
+                        log.warn("MCP23017 {} - {}", address, e.getMessage());
+                    }
                 }
             });
         }
 
-        myLCD = new MyLCD(myUI, configs, lcd_hardware);
+        myLCD = new MyLCD(configs, display_sinks, signalClock);
     }
 
 
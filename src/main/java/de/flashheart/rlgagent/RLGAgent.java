@@ -3,14 +3,24 @@ package de.flashheart.rlgagent;
 import com.pi4j.io.gpio.*;
 import com.pi4j.io.gpio.event.GpioPinListenerDigital;
 import de.flashheart.rlgagent.hardware.Agent;
+import de.flashheart.rlgagent.hardware.I2CBusManager;
+import de.flashheart.rlgagent.hardware.MirrorSink;
 import de.flashheart.rlgagent.hardware.MyLCD;
 import de.flashheart.rlgagent.hardware.PinHandler;
+import de.flashheart.rlgagent.hardware.ProgressBar;
+import de.flashheart.rlgagent.hardware.SignalClock;
+import de.flashheart.rlgagent.hardware.SignalCommand;
+import de.flashheart.rlgagent.hardware.TimerEngine;
 import de.flashheart.rlgagent.jobs.NetworkMonitoringJob;
 import de.flashheart.rlgagent.jobs.StatusJob;
 import de.flashheart.rlgagent.misc.AudioPlayer;
+import de.flashheart.rlgagent.misc.CommandRouter;
+import de.flashheart.rlgagent.misc.CommandRouter.Subsystem;
 import de.flashheart.rlgagent.misc.Configs;
 import de.flashheart.rlgagent.misc.JavaTimeConverter;
+import de.flashheart.rlgagent.misc.PayloadDecoder;
 import de.flashheart.rlgagent.misc.Tools;
+import de.flashheart.rlgagent.misc.WireFormat;
 import de.flashheart.rlgagent.ui.MyUI;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
@@ -19,35 +29,32 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.quartz.*;
 import org.quartz.impl.StdSchedulerFactory;
 
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static org.quartz.JobBuilder.newJob;
 import static org.quartz.TriggerBuilder.newTrigger;
 
 @Log4j2
-public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
+public class RLGAgent implements MqttCallbackExtended {
     private final String EVENTS, CMD4ME;//, CMD4ALL;
+    private final CommandRouter command_router;
     private final Optional<MyUI> myUI;
     private final Optional<GpioController> gpio;
     private final PinHandler pinHandler;
     private final Configs configs;
     private final MyLCD myLCD;
+    private final SignalClock signalClock;
+    private final Optional<I2CBusManager> i2CBusManager;
     private Optional<IMqttClient> iMqttClient;
     private List<String> potential_brokers;
 
@@ -64,43 +71,24 @@ public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
     private HashMap<String, String> current_network_stats;
     public static final DateTimeFormatter myformat = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT, FormatStyle.MEDIUM);
     private AudioPlayer audioPlayer;
-    private Optional<String> progress_bar_timer;
+    // running progress bars by their target
+    private final HashMap<String, Pair<ProgressBar, TimerEngine.Subscription>> progress_bars;
     // Pair(Timerkey, led_grn, last_change as millis in long)
     //private Optional<Pair<String, String>> blinking_timer;
 
-    private final String[] PROGRESS_SCHEMES = new String[]{"normal", "normal", "fast", "very_fast", "mega_fast"};
-    private int prev_progress_bar_value = -1; // we will receive a lot of value updates is we use a progress bar. This will reduce the number of updates.
-
-    private final ArrayList<Pair<List<String>, String>> PROGRESS_ESCALATION = new ArrayList<>();
-
-    public RLGAgent(Configs configs, Optional<MyUI> myUI, Optional<GpioController> gpio, PinHandler pinHandler, MyLCD myLCD) throws SchedulerException {
-
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht"), "normal"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht"), "fast"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht"), "very_fast"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red"), "normal"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red"), "fast"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red"), "very_fast"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red", "ylw"), "normal"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red", "ylw"), "fast"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red", "ylw"), "very_fast"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red", "ylw", "grn"), "normal"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red", "ylw", "grn"), "fast"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red", "ylw", "grn"), "very_fast"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red", "ylw", "grn", "blu"), "fast"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red", "ylw", "grn", "blu"), "very_fast"));
-        PROGRESS_ESCALATION.add(new ImmutablePair<>(Arrays.asList("wht", "red", "ylw", "grn", "blu"), "mega_fast"));
+    public RLGAgent(Configs configs, Optional<MyUI> myUI, Optional<GpioController> gpio, PinHandler pinHandler, MyLCD myLCD, SignalClock signalClock, Optional<I2CBusManager> i2CBusManager) throws SchedulerException {
 
         log.info("RLG-Agent {}b{} {}", configs.getBuildProperties("my.version"), configs.getBuildProperties("buildNumber"), configs.getBuildProperties("buildDate"));
 
-        progress_bar_timer = Optional.empty();
+        progress_bars = new HashMap<>();
         //blinking_timer = Optional.empty();
         this.myUI = myUI;
         this.gpio = gpio;
         this.pinHandler = pinHandler;
         this.configs = configs;
         this.myLCD = myLCD;
-        this.myLCD.addPropertyChangeListener(this);
+        this.signalClock = signalClock;
+        this.i2CBusManager = i2CBusManager;
 
         potential_brokers = Arrays.asList(configs.get(Configs.MQTT_BROKER).trim().split("\\s+"));
         current_network_stats = new HashMap<>();
@@ -120,6 +108,7 @@ public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
         // inbound
         //CMD4ALL = String.format("%s/cmd/all/#", configs.get(Configs.MQTT_ROOT), me.getAgentid());
         CMD4ME = String.format("%s/cmd/%s/#", configs.get(Configs.MQTT_ROOT), me.getAgentid());
+        command_router = new CommandRouter(CMD4ME.substring(0, CMD4ME.length() - 1));
 
         // outbound
         EVENTS = String.format("%s/evt/%s/", configs.get(Configs.MQTT_ROOT), me.getAgentid());
@@ -127,6 +116,11 @@ public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
         networkMonitoringJob = new JobKey(NetworkMonitoringJob.name, "group1");
         statusJob = new JobKey(StatusJob.name, "group1");
 
+        // the commander can see what the players see
+        if (configs.getInt(Configs.LCD_MIRROR_INTERVAL) > 0)
+            myLCD.add_sink(new MirrorSink(frame -> reportEvent("display", frame), configs.getInt(Configs.LCD_MIRROR_INTERVAL)));
+
+        register_commands();
         initAgent();
         initNetworkConnection();
         initStatusJob();
@@ -195,52 +189,61 @@ public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
     }
 
     private void proc(String topic, MqttMessage receivedMessage) {
-        // last part of topic is the command
-        List<String> tokens = Collections.list(new StringTokenizer(topic, "/")).stream().map(token -> (String) token).collect(Collectors.toList());
-        if (tokens.size() < 4 || tokens.size() > 5) return;
-        String cmd = tokens.get(tokens.size() - 1);
+        log.trace("received {} from {}", receivedMessage, topic);
+        command_router.route(topic, receivedMessage.getPayload());
+    }
 
-        log.trace("received {} from {} cmd {}", receivedMessage, topic, cmd);
-        try {
-            String payload = new String(receivedMessage.getPayload());
-            final JSONObject json = new JSONObject(payload.isEmpty() ? "{}" : payload);
-            // <cmd/> => paged|signals|timers|vars
-            if (cmd.equalsIgnoreCase("paged")) {
-                procPaged(json);
-            } else if (cmd.equalsIgnoreCase("visual")) {
-                if (json.has("progress")) {
-                    // we need all LEDs for this.
-                    pinHandler.leds_off();
-                    prev_progress_bar_value = -1;
-                    progress_bar_timer = Optional.of(json.getString("progress"));
-                } else {
-                    progress_bar_timer = Optional.empty();
-                    pinHandler.parse_incoming(json);
-                }
-            } else if (cmd.equalsIgnoreCase("acoustic")) {
-                pinHandler.parse_incoming(json);
-            } else if (cmd.equalsIgnoreCase("play")) {
-                procPlay(json);
-            } else if (cmd.equalsIgnoreCase("rfid")) {
-                procRfid(json);
-            } else if (cmd.equalsIgnoreCase("timers")) {
-                procTimers(json);
-            } else if (cmd.equalsIgnoreCase("vars")) {
-                procVars(json);
-            } else if (cmd.equalsIgnoreCase("reset_status")) {
-                resetStatus();
-            } else if (cmd.equalsIgnoreCase("status")) {
-                scheduler.triggerJob(statusJob);
-            } else if (cmd.equalsIgnoreCase("shutdown")) {
-                procShutdown(true);
-            } else {
-                log.warn("unknown command {}", cmd);
-            }
-        } catch (Exception e) {
-            log.error(e.toString());
+    /**
+     * the handlers for all commands we know. The command is the last part of the topic, e.g. <code>rlg/cmd/ag01/paged</code>.
+     * Each subsystem has its own queue, so a slow play command never delays the signals.
+     */
+    private void register_commands() {
+        command_router.register("paged", Subsystem.DISPLAY, payload -> procPaged(PayloadDecoder.pages(payload)));
+        command_router.register("visual", Subsystem.SIGNALS, payload -> procVisual(PayloadDecoder.signals(payload, pinHandler)));
+        command_router.register("acoustic", Subsystem.SIGNALS, payload -> procAcoustic(PayloadDecoder.signals(payload, pinHandler)));
+        command_router.register("choreography", Subsystem.SIGNALS, payload -> {
+            final JSONObject json = json(payload);
+            stop_progress_bars(json.getJSONObject("timeline").keySet());
+            pinHandler.parse_choreography(json);
+        });
+        command_router.register("play", Subsystem.AUDIO, payload -> procPlay(json(payload)));
+        command_router.register("rfid", Subsystem.RFID, payload -> procRfid(json(payload)));
+        command_router.register("timers", Subsystem.DISPLAY, payload -> procTimers(PayloadDecoder.timers(payload)));
+        command_router.register("vars", Subsystem.DISPLAY, payload -> procVars(PayloadDecoder.vars(payload)));
+        // the same commands in the binary wire format
+        command_router.register("visual" + WireFormat.SUFFIX, Subsystem.SIGNALS, payload -> procVisual(WireFormat.signals(payload, pinHandler)));
+        command_router.register("acoustic" + WireFormat.SUFFIX, Subsystem.SIGNALS, payload -> procAcoustic(WireFormat.signals(payload, pinHandler)));
+        command_router.register("timers" + WireFormat.SUFFIX, Subsystem.DISPLAY, payload -> procTimers(WireFormat.timers(payload)));
+        command_router.register("reset_status", Subsystem.CONTROL, payload -> resetStatus());
+        command_router.register("status", Subsystem.CONTROL, payload -> scheduler.triggerJob(statusJob));
+        command_router.register("shutdown", Subsystem.CONTROL, payload -> procShutdown(true));
+    }
+
+    private static JSONObject json(byte[] payload) {
+        return new JSONObject(payload.length == 0 ? "{}" : new String(payload));
+    }
+
+    private void procVisual(SignalCommand command) {
+        if (command.getProgress().isPresent()) {
+            start_progress_bar(command.getProgress().get(), command.getProgress_target());
+        } else {
+            stop_progress_bars(command.getMask());
+            pinHandler.play(command);
         }
     }
 
+    private void procAcoustic(SignalCommand command) {
+        stop_progress_bars(command.getMask());
+        pinHandler.play(command);
+    }
+
+    /**
+     * @return to register more commands
+     */
+    public CommandRouter getCommand_router() {
+        return command_router;
+    }
+
     private void resetStatus() {
         num_of_reconnects = 0L;
         sum_of_failed_pings = 0L;
@@ -280,30 +283,26 @@ public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
             log.warn("unknown rfid command");
     }
 
-    private void procTimers(JSONObject json) {
-        prev_progress_bar_value = -1;
-        Set<String> keys = json.keySet();
-        if (keys.contains("_clearall")) {
+    private void procTimers(Map<String, Long> timers) {
+        if (timers.containsKey(PayloadDecoder.CLEAR_ALL)) {
             myLCD.clear_timers();
         } else
-            json.keySet().forEach(sKey -> myLCD.setTimer(sKey, json.getLong(sKey)));
+            timers.forEach(myLCD::setTimer);
     }
 
-    private void procVars(JSONObject json) {
-        json.keySet().forEach(sKey -> myLCD.setVariable(sKey, json.get(sKey).toString()));
-
+    private void procVars(Map<String, String> vars) {
+        vars.forEach(myLCD::setVariable);
     }
 
     private void procPlay(JSONObject json) throws IOException {
         audioPlayer.play(json.optString("channel", "music"), json.getString("subpath"), json.getString("soundfile"));
     }
 
-    private void procPaged(JSONObject json) {
+    private void procPaged(Map<String, List<String>> pages) {
         myLCD.init(); // always a fresh start. changes are rare.
-        json.keySet().forEach(page -> {
-            JSONArray lines = json.getJSONArray(page);
-            for (int line = 1; line <= lines.length(); line++) {
-                myLCD.setLine(page, line, lines.getString(line - 1));
+        pages.forEach((page, lines) -> {
+            for (int line = 1; line <= lines.size(); line++) {
+                myLCD.setLine(page, line, lines.get(line - 1));
             }
         });
     }
@@ -416,7 +415,14 @@ public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
                     .put("mqtt_connect_tries", mqtt_connect_tries)
                     .put("netmonitor_cycle", netmonitor_cycle)
                     .put("reconnects", num_of_reconnects)
-                    .put("failed_pings", sum_of_failed_pings);
+                    .put("failed_pings", sum_of_failed_pings)
+                    .put("jitter", signalClock.toJson())
+                    .put("signals", pinHandler.toJson())
+                    .put("output_banks", pinHandler.getOutput_banks().toJson())
+                    .put("lcd", myLCD.getStatistics())
+                    .put("commands", command_router.toJson())
+                    .put("binary", WireFormat.announce(pinHandler));
+            i2CBusManager.ifPresent(busManager -> status.put("i2c_bus", busManager.toJson()));
 
             reportEvent("status", status.toString());
         }
@@ -450,8 +456,10 @@ public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
         }
 
         pinHandler.off();
-        JSONObject netstatus_scheme = new JSONObject().put(Configs.OUT_LED_WHITE, "netstatus");  // white is always flashing
-        pinHandler.parse_incoming(netstatus_scheme); // start immediately
+        // all netstatus LEDs are played as one choreography, so they flash in phase
+        JSONObject netstatus_timeline = new JSONObject().put(Configs.OUT_LED_WHITE, "netstatus");  // white is always flashing
+        JSONObject netstatus_scheme = new JSONObject().put("repeat", -1).put("timeline", netstatus_timeline);
+        pinHandler.parse_choreography(netstatus_scheme); // start immediately
         String reachable_host = "";
         if (active_broker.isEmpty()) { // we only search for a new host when we weren't connected before
             log.debug("haven't had a broker yet - searching");
@@ -471,11 +479,11 @@ public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
         if (reachable_host.isEmpty()) {
             log.debug("nobody answered - failed");
 
-            if (me.getWifi() > 0) netstatus_scheme.put(Configs.OUT_LED_RED, "netstatus");
-            if (me.getWifi() > 2) netstatus_scheme.put(Configs.OUT_LED_YELLOW, "netstatus");
-            if (me.getWifi() > 3) netstatus_scheme.put(Configs.OUT_LED_GREEN, "netstatus");
+            if (me.getWifi() > 0) netstatus_timeline.put(Configs.OUT_LED_RED, "netstatus");
+            if (me.getWifi() > 2) netstatus_timeline.put(Configs.OUT_LED_YELLOW, "netstatus");
+            if (me.getWifi() > 3) netstatus_timeline.put(Configs.OUT_LED_GREEN, "netstatus");
 
-            pinHandler.parse_incoming(netstatus_scheme);
+            pinHandler.parse_choreography(netstatus_scheme);
 
             if (!myLCD.pageExists("network1")) {
                 myLCD.welcome_page();
@@ -497,8 +505,8 @@ public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
                 myLCD.setLine("page0", 2, "MQTT connected to");
                 myLCD.setLine("page0", 3, active_broker);
                 myLCD.setLine("page0", 4, "");
-                netstatus_scheme.put(Configs.OUT_LED_BLUE, "netstatus");
-                pinHandler.parse_incoming(netstatus_scheme);
+                netstatus_timeline.put(Configs.OUT_LED_BLUE, "netstatus");
+                pinHandler.parse_choreography(netstatus_scheme);
                 send_status_message(); // tell commander immediately
             }
         }
@@ -536,47 +544,34 @@ public class RLGAgent implements MqttCallbackExtended, PropertyChangeListener {
     }
 
     /**
-     * for progressing signals with a specific timer. this method is called from MyLCD.java which is in charge of
-     * calculating all timers.
+     * for progressing signals with a specific timer. MyLCD is in charge of calculating all timers and tells the bar
+     * when the next step is due. A new bar replaces all bars which share pins with it.
      *
-     * @param evt A PropertyChangeEvent object describing the event source and the property that has changed.
+     * @param timer  the name of the timer
+     * @param target the pins to use. a pin name, led_all, sir_all or a group name
      */
-    @Override
-    public void propertyChange(PropertyChangeEvent evt) {
-        update_progress_bar(evt);
-        //if (blinking_timer.isPresent()) led_blinking_timer(evt); // set a blink scheme to show the remaining time
+    private void start_progress_bar(String timer, String target) {
+        ProgressBar progressBar = new ProgressBar(pinHandler, target);
+        stop_progress_bars(progressBar.getMask());
+        pinHandler.off(target);
+        progress_bars.put(target, new ImmutablePair<>(progressBar, myLCD.subscribe(timer, progressBar.getThresholds(), progressBar)));
     }
 
-    void update_progress_bar(PropertyChangeEvent evt) {
-        if (!progress_bar_timer.isPresent()) return;
-        if (!progress_bar_timer.orElse("").equals(evt.getPropertyName())) return;
-
-        long new_value = (Long) evt.getNewValue();
-        long old_value = (Long) evt.getOldValue();
-
-        if (new_value == 0L) {
-            // say goodbye
-            pinHandler.parse_incoming(new JSONObject("{" +
-                    "\"led_all\": \"very_long\"" +
-                    "}"));
-            return;
-        }
-
-        BigDecimal initial_timer = BigDecimal.valueOf(old_value);
-        BigDecimal current_timer = BigDecimal.valueOf(new_value);
-        BigDecimal ratio = BigDecimal.ONE.subtract(current_timer.divide(initial_timer, 2, RoundingMode.UP));
-
-        int progress_steps = PROGRESS_ESCALATION.size();
-        int step = ratio.multiply(BigDecimal.valueOf(progress_steps)).intValue();
-        if (step == prev_progress_bar_value) return; // only set LEDs when necessary
-        prev_progress_bar_value = step;
+    /**
+     * stops all progress bars that use one of the targets. Otherwise they would override the new signals with the next
+     * step.
+     */
+    private void stop_progress_bars(Set<String> targets) {
+        long mask = 0L;
+        for (String target : targets) mask |= pinHandler.resolve(target);
+        stop_progress_bars(mask);
+    }
 
-        // create a scheme json object to make the progress bar visible on the agents
-        JSONObject progress_scheme = new JSONObject();  // white is always flashing
-        PROGRESS_ESCALATION.get(step).getLeft().forEach(pin -> {
-            String speed = PROGRESS_ESCALATION.get(step).getRight();
-            progress_scheme.put(pin, speed);
+    private void stop_progress_bars(long mask) {
+        progress_bars.values().removeIf(bar -> {
+            if ((bar.getLeft().getMask() & mask) == 0L) return false;
+            myLCD.unsubscribe(bar.getRight());
+            return true;
         });
-        pinHandler.parse_incoming(progress_scheme);
     }
 }
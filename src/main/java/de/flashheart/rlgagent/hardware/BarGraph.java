@@ -0,0 +1,133 @@
+package de.flashheart.rlgagent.hardware;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bar graph showing the elapsed time of a timer, for lines like <code>"${bar:remaining}"</code>. Every cell has 5
+ * columns (see {@link GlyphCache#BAR}), so a bar of 10 cells moves in 50 steps.
+ * <p>
+ * The bar is a variable named <code>bar:timer:width</code>. Without a width, the bar takes the space left over by the
+ * literal text and the other bars of its line. All steps are rendered when the bar is created. The bar subscribes to
+ * the ratios where the next column starts, so it is only touched when it really moves.
+ */
+public class BarGraph implements TimerEngine.ThresholdListener {
+    public static final String PREFIX = "bar:";
+
+    private final String variable;
+    private final String timer;
+    private final VariableTable variables;
+    private final String[] steps;
+    private final double[] thresholds;
+
+    /**
+     * @param variable  like <code>bar:remaining:10</code>
+     * @param variables where the bar is shown
+     */
+    public BarGraph(String variable, VariableTable variables) {
+        final int colon = variable.lastIndexOf(':');
+        this.variable = variable;
+        this.timer = variable.substring(PREFIX.length(), colon);
+        this.variables = variables;
+        final int width = Integer.parseInt(variable.substring(colon + 1));
+
+        final int columns = width * (GlyphCache.BAR.length - 1);
+        steps = new String[columns + 1];
+        char[] cells = new char[width];
+        for (int step = 0; step <= columns; step++) {
+            for (int cell = 0; cell < width; cell++) {
+                final int filled = Math.max(0, Math.min(GlyphCache.BAR.length - 1, step - cell * (GlyphCache.BAR.length - 1)));
+                cells[cell] = GlyphCache.BAR[filled];
+            }
+            steps[step] = new String(cells);
+        }
+        thresholds = new double[columns];
+        for (int k = 1; k <= columns; k++) thresholds[k - 1] = (double) k / columns;
+        variables.set(variable, steps[0]);
+    }
+
+    /**
+     * adds the width to every bar variable without one.
+     *
+     * @param text a line with variables
+     * @param cols of the display
+     * @return the text with bars like <code>${bar:remaining:12}</code>
+     */
+    public static String with_widths(String text, int cols) {
+        List<int[]> tokens = tokens(text);
+        int used = text.length(); // by the literal text and the bars with a width
+        int bars = 0;
+        for (int[] token : tokens) {
+            used -= token[1] - token[0] + 1;
+            if (!is_bar(text, token)) continue;
+            if (has_width(text, token)) used += Integer.parseInt(text.substring(text.lastIndexOf(':', token[1]) + 1, token[1]));
+            else bars++;
+        }
+        if (bars == 0) return text;
+        final int width = Math.max(1, (cols - used) / bars);
+        StringBuilder result = new StringBuilder(text);
+        for (int i = tokens.size() - 1; i >= 0; i--) { // from the end, so the positions stay valid
+            int[] token = tokens.get(i);
+            if (is_bar(text, token) && !has_width(text, token)) result.insert(token[1], ":" + width);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the names of all bar variables in the text
+     */
+    public static List<String> bars(String text) {
+        List<String> bars = new ArrayList<>();
+        for (int[] token : tokens(text)) if (is_bar(text, token)) bars.add(text.substring(token[0] + 2, token[1]));
+        return bars;
+    }
+
+    /**
+     * @return start of "${" and position of "}" for every variable
+     */
+    private static List<int[]> tokens(String text) {
+        List<int[]> tokens = new ArrayList<>();
+        int pos = 0;
+        while (true) {
+            int open = text.indexOf("${", pos);
+            int close = open < 0 ? -1 : text.indexOf('}', open + 2);
+            if (close < 0) return tokens;
+            tokens.add(new int[]{open, close});
+            pos = close + 1;
+        }
+    }
+
+    private static boolean is_bar(String text, int[] token) {
+        return text.startsWith(PREFIX, token[0] + 2);
+    }
+
+    private static boolean has_width(String text, int[] token) {
+        final int colon = text.lastIndexOf(':', token[1]);
+        if (colon < token[0] + 2 + PREFIX.length()) return false;
+        for (int i = colon + 1; i < token[1]; i++) if (!Character.isDigit(text.charAt(i))) return false;
+        return colon + 1 < token[1];
+    }
+
+    public String getTimer() {
+        return timer;
+    }
+
+    public double[] getThresholds() {
+        return thresholds;
+    }
+
+    @Override
+    public void crossed(int crossed) {
+        variables.set(variable, steps[crossed]);
+    }
+
+    @Override
+    public void finished() {
+        variables.set(variable, steps[steps.length - 1]); // all the time has elapsed
+    }
+
+    @Override
+    public void cleared() {
+        variables.set(variable, steps[0]);
+    }
+}
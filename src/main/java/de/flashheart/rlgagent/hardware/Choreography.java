@@ -0,0 +1,126 @@
+package de.flashheart.rlgagent.hardware;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A timeline for several pins (lanes), compiled into one sequence of steps. Every step has a bitmask of the lanes
+ * which are ON (bit 0 is the first lane) and a duration in ms. Playing a choreography is one lookup per step for all
+ * lanes together, so multi LED animations can't get out of phase.
+ * <p>
+ * The lanes are compiled from ordinary schemes. A run of the choreography lasts as long as its longest lane, shorter
+ * lanes stay OFF for the rest of the run. Like {@link CompiledScheme}s, choreographies are immutable.
+ */
+public final class Choreography {
+    public static final int MAX_LANES = 32;
+
+    private final int[] masks;
+    private final int[] durations;
+    private final int lanes;
+    private final int repeat;
+
+    private Choreography(int lanes, int repeat, int[] masks, int[] durations) {
+        this.lanes = lanes;
+        this.repeat = repeat;
+        this.masks = masks;
+        this.durations = durations;
+    }
+
+    /**
+     * merges the edges of all lanes into one timeline.
+     *
+     * @param repeat number of runs. negative values mean forever. the repeat values of the lanes are ignored.
+     * @param lanes  one scheme per lane
+     * @return the compiled choreography
+     */
+    public static Choreography of(int repeat, List<CompiledScheme> lanes) {
+        if (lanes.size() > MAX_LANES)
+            throw new IllegalArgumentException("a choreography supports up to " + MAX_LANES + " lanes");
+
+        final int num = lanes.size();
+        int[] cursor = new int[num];
+        long[] segment_end = new long[num];
+        int capacity = 0;
+        for (int lane = 0; lane < num; lane++) {
+            CompiledScheme scheme = lanes.get(lane);
+            capacity += scheme.length();
+            segment_end[lane] = scheme.isEmpty() ? Long.MAX_VALUE : scheme.duration(0);
+        }
+
+        int[] masks = new int[capacity];
+        int[] durations = new int[capacity];
+        int size = 0;
+        long now = 0;
+
+        while (true) {
+            int mask = 0;
+            long next = Long.MAX_VALUE;
+            for (int lane = 0; lane < num; lane++) {
+                if (segment_end[lane] == Long.MAX_VALUE) continue; // this lane is finished
+                if (lanes.get(lane).isOn(cursor[lane])) mask |= 1 << lane;
+                next = Math.min(next, segment_end[lane]);
+            }
+            if (next == Long.MAX_VALUE) break; // all lanes are finished
+
+            int duration = (int) (next - now);
+            if (size > 0 && masks[size - 1] == mask) durations[size - 1] += duration;
+            else {
+                masks[size] = mask;
+                durations[size] = duration;
+                size++;
+            }
+
+            // move on every lane with an edge right here
+            for (int lane = 0; lane < num; lane++) {
+                if (segment_end[lane] != next) continue;
+                CompiledScheme scheme = lanes.get(lane);
+                cursor[lane]++;
+                segment_end[lane] = cursor[lane] < scheme.length() ? next + scheme.duration(cursor[lane]) : Long.MAX_VALUE;
+            }
+            now = next;
+        }
+
+        return new Choreography(num, repeat < 0 ? CompiledScheme.FOREVER : repeat, Arrays.copyOf(masks, size), Arrays.copyOf(durations, size));
+    }
+
+    public boolean isEmpty() {
+        return masks.length == 0;
+    }
+
+    /**
+     * @return number of steps in one run
+     */
+    public int length() {
+        return masks.length;
+    }
+
+    /**
+     * @return the lanes which are ON during this step
+     */
+    public int mask(int step) {
+        return masks[step];
+    }
+
+    /**
+     * @return duration of a step in ms
+     */
+    public int duration(int step) {
+        return durations[step];
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return how often this choreography is played. {@link CompiledScheme#FOREVER} for endless ones.
+     */
+    public int getRepeat() {
+        return repeat;
+    }
+
+    @Override
+    public String toString() {
+        return "Choreography(lanes=" + lanes + ", repeat=" + (repeat == CompiledScheme.FOREVER ? "forever" : repeat) + ", masks=" + Arrays.toString(masks) + ", durations=" + Arrays.toString(durations) + ")";
+    }
+}
@@ -0,0 +1,28 @@
+package de.flashheart.rlgagent.hardware;
+
+/**
+ * A decoded choreography command: the compiled {@link Choreography} and the pins of its lanes. It can be played as
+ * often as needed, every time as a new {@link Ensemble}.
+ */
+public final class ChoreographyCommand {
+    private final Choreography choreography;
+    private final PinScheme[] lanes;
+
+    ChoreographyCommand(Choreography choreography, PinScheme[] lanes) {
+        this.choreography = choreography;
+        this.lanes = lanes;
+    }
+
+    Choreography getChoreography() {
+        return choreography;
+    }
+
+    PinScheme[] getLanes() {
+        return lanes;
+    }
+
+    @Override
+    public String toString() {
+        return choreography.toString();
+    }
+}
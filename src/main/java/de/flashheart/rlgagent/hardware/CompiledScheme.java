@@ -0,0 +1,109 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.json.JSONArray;
+
+import java.util.Arrays;
+
+/**
+ * An immutable, run-length encoded form of a signal scheme. The JSON scheme <code>[250,-250]</code> is stored as
+ * primitive segments in an int array. The sign of a segment is the pin state (positive means ON, negative means OFF),
+ * the absolute value is the duration in ms. Adjacent segments with the same state are merged, zero length segments
+ * are dropped.
+ * <p>
+ * Only the macros are kept for good, in the {@link SchemeLibrary}, so 10 pins running "fast" share the very same
+ * object. An inline scheme from a command is shared by the pins of that command and is gone when they are done.
+ */
+public final class CompiledScheme {
+    // a repeat value of FOREVER never runs out
+    public static final int FOREVER = Integer.MAX_VALUE;
+
+    private final int[] segments;
+    private final int repeat;
+    private final int hash;
+
+    private CompiledScheme(int repeat, int[] segments) {
+        this.repeat = repeat;
+        this.segments = segments;
+        this.hash = 31 * repeat + Arrays.hashCode(segments);
+    }
+
+    /**
+     * @param repeat   number of runs through the scheme. negative values (or {@link #FOREVER}) mean forever.
+     * @param durations signed durations in ms as sent by the commander
+     * @return the compiled scheme
+     */
+    public static CompiledScheme of(int repeat, int[] durations) {
+        return new CompiledScheme(repeat < 0 ? FOREVER : repeat, encode(durations));
+    }
+
+    /**
+     * compiles the JSON representation <code>{"repeat": 3, "scheme": [75,-75]}</code>
+     *
+     * @param repeat      see {@link #of(int, int[])}
+     * @param json_scheme array of signed durations
+     * @return the compiled scheme
+     */
+    public static CompiledScheme of(int repeat, JSONArray json_scheme) {
+        int[] durations = new int[json_scheme.length()];
+        for (int i = 0; i < durations.length; i++) durations[i] = json_scheme.getInt(i);
+        return of(repeat, durations);
+    }
+
+    private static int[] encode(int[] durations) {
+        int[] buffer = new int[durations.length];
+        int size = 0;
+        for (int value : durations) {
+            if (value == 0) continue;
+            if (size > 0 && (buffer[size - 1] > 0) == (value > 0)) buffer[size - 1] += value; // same state - merge
+            else buffer[size++] = value;
+        }
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public boolean isEmpty() {
+        return segments.length == 0;
+    }
+
+    /**
+     * @return number of segments in one run
+     */
+    public int length() {
+        return segments.length;
+    }
+
+    public boolean isOn(int segment) {
+        return segments[segment] > 0;
+    }
+
+    /**
+     * @return duration of a segment in ms
+     */
+    public int duration(int segment) {
+        return Math.abs(segments[segment]);
+    }
+
+    /**
+     * @return how often this scheme is played. {@link #FOREVER} for endless schemes.
+     */
+    public int getRepeat() {
+        return repeat;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CompiledScheme)) return false;
+        CompiledScheme that = (CompiledScheme) o;
+        return repeat == that.repeat && Arrays.equals(segments, that.segments);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledScheme(repeat=" + (repeat == FOREVER ? "forever" : repeat) + ", segments=" + Arrays.toString(segments) + ")";
+    }
+}
@@ -0,0 +1,35 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.json.JSONObject;
+
+/**
+ * Something that shows the frames of the display, like the HD44780, the GUI or a mirror topic on the broker. Every
+ * sink gets its own {@link SinkWriter} thread, so a slow sink never holds up the others. The writer drops frames that
+ * come in faster than the sink's minimum interval and frames that look the same as the last one.
+ */
+public interface DisplaySink {
+    /**
+     * @return for the thread name and the status message
+     */
+    String getName();
+
+    /**
+     * @return the minimum time between two frames in ms. 0 for no limit.
+     */
+    long getMin_interval();
+
+    /**
+     * called on the writer thread of this sink only
+     *
+     * @param frame    to be shown
+     * @param previous the frame shown before. null for the first one.
+     */
+    void show(Frame frame, Frame previous) throws Exception;
+
+    /**
+     * @return statistics of the sink itself
+     */
+    default JSONObject toJson() {
+        return new JSONObject();
+    }
+}
@@ -0,0 +1,93 @@
+package de.flashheart.rlgagent.hardware;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Choreography} being played on a set of pins. One lane per pin. A pin belongs to the ensemble as long as
+ * nobody published something else for it. When the last pin has left, the ensemble stops.
+ * <p>
+ * Created by the command threads, played by the PinHandler thread only.
+ */
+@Log4j2
+class Ensemble extends Track {
+    private final Choreography choreography;
+    private final PinScheme[] lanes;
+    private final long start;
+    private boolean started;
+    private int step; // the step we are in
+    private int runs; // runs left, including the current one
+
+    Ensemble(Choreography choreography, PinScheme[] lanes, long start) {
+        this.choreography = choreography;
+        this.lanes = lanes;
+        this.start = start;
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * the first pin has joined. the first step is applied right away.
+     */
+    void start() {
+        started = true;
+        if (choreography.isEmpty()) {
+            finish();
+            return;
+        }
+        step = 0;
+        runs = Math.max(1, choreography.getRepeat());
+        next_edge = start + TimeUnit.MILLISECONDS.toNanos(choreography.duration(0));
+        apply_mask();
+    }
+
+    /**
+     * a pin joins an ensemble that is already running
+     */
+    void sync(PinScheme pinScheme) {
+        for (int lane = 0; lane < lanes.length; lane++) {
+            if (lanes[lane] == pinScheme) pinScheme.myPin.setState(isActive() && (choreography.mask(step) & (1 << lane)) != 0);
+        }
+    }
+
+    @Override
+    void advance() {
+        step++;
+        if (step >= choreography.length()) { // its over
+            step = 0;
+            if (runs != CompiledScheme.FOREVER && --runs <= 0) {
+                finish();
+                return;
+            }
+        }
+        next_edge += TimeUnit.MILLISECONDS.toNanos(choreography.duration(step));
+        if (!apply_mask()) {
+            log.trace("all pins have left the ensemble");
+            next_edge = IDLE;
+        }
+    }
+
+    /**
+     * @return false if there is no pin left in this ensemble
+     */
+    private boolean apply_mask() {
+        final int mask = choreography.mask(step);
+        boolean members = false;
+        for (int lane = 0; lane < lanes.length; lane++) {
+            if (lanes[lane].getEnsemble() != this) continue;
+            members = true;
+            lanes[lane].myPin.setState((mask & (1 << lane)) != 0);
+        }
+        return members;
+    }
+
+    private void finish() {
+        next_edge = IDLE;
+        for (PinScheme pinScheme : lanes) {
+            if (pinScheme.getEnsemble() == this) pinScheme.leave();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package de.flashheart.rlgagent.hardware;
+
+import java.util.Arrays;
+
+/**
+ * The text of all lines of the display at one moment. Rendered once by {@link MyLCD} and shared by all
+ * {@link DisplaySink}s, so it is never changed. Every line is padded or cut to the width of the display.
+ */
+public final class Frame {
+    private final String[] lines;
+    private final long rendered; // clock time
+
+    public Frame(String[] lines, long rendered) {
+        this.lines = lines.clone();
+        this.rendered = rendered;
+    }
+
+    public int rows() {
+        return lines.length;
+    }
+
+    /**
+     * @param row 0..rows-1
+     */
+    public String line(int row) {
+        return lines[row];
+    }
+
+    /**
+     * @param previous frame, may be null
+     * @return true if the line differs from the previous frame
+     */
+    public boolean changed(Frame previous, int row) {
+        return previous == null || !lines[row].equals(previous.lines[row]);
+    }
+
+    public long getRendered() {
+        return rendered;
+    }
+
+    public boolean same_text(Frame other) {
+        return other != null && Arrays.equals(lines, other.lines);
+    }
+}
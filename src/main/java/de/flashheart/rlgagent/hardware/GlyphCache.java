@@ -0,0 +1,175 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translates the characters of a line into the codes of the HD44780. Plain ASCII goes through as it is. Some other
+ * characters (like ä, ö, ü, ß, °) are in the character ROM (A00) at other positions. Everything else we know of (like
+ * Ä, Ö, Ü and the bar graph cells) needs a custom glyph in one of the 8 CGRAM slots.
+ * <p>
+ * A glyph is only uploaded when it gets a slot. Every slot counts how many cells on the glass are showing it. Only a
+ * slot that is not shown anywhere can be taken over, and then the least recently used one. If all slots are in use,
+ * the cell shows a fallback (like A for Ä) until a slot gets free.
+ * <p>
+ * Not thread safe. Only the thread writing to the LCD uses it.
+ */
+public class GlyphCache {
+    public static final int SLOTS = 8;
+    /**
+     * a bar graph cell with 0 to 5 columns filled
+     */
+    public static final char[] BAR = new char[]{' ', '▏', '▎', '▌', '▊', '█'};
+
+    private static final Map<Character, Byte> ROM = new HashMap<>();
+    private static final Map<Character, Glyph> CUSTOM = new HashMap<>();
+
+    static {
+        ROM.put('ä', (byte) 0xe1);
+        ROM.put('ß', (byte) 0xe2);
+        ROM.put('µ', (byte) 0xe4);
+        ROM.put('ö', (byte) 0xef);
+        ROM.put('ü', (byte) 0xf5);
+        ROM.put('°', (byte) 0xdf);
+        ROM.put('÷', (byte) 0xfd);
+        ROM.put(BAR[5], (byte) 0xff);
+
+        custom('Ä', 'A', 0x0a, 0x00, 0x0e, 0x11, 0x1f, 0x11, 0x11, 0x00);
+        custom('Ö', 'O', 0x0a, 0x00, 0x0e, 0x11, 0x11, 0x11, 0x0e, 0x00);
+        custom('Ü', 'U', 0x0a, 0x00, 0x11, 0x11, 0x11, 0x11, 0x0e, 0x00);
+        for (int filled = 1; filled < 5; filled++) {
+            final int row = (0x1f << (5 - filled)) & 0x1f; // from the left
+            custom(BAR[filled], filled < 3 ? ' ' : BAR[5], row, row, row, row, row, row, row, row);
+        }
+    }
+
+    private static void custom(char c, char fallback, int... rows) {
+        byte[] pattern = new byte[rows.length];
+        for (int i = 0; i < rows.length; i++) pattern[i] = (byte) rows[i];
+        CUSTOM.put(c, new Glyph(c, fallback, pattern));
+    }
+
+    /**
+     * puts a pattern into CGRAM
+     */
+    public interface Uploader {
+        void upload(int slot, byte[] pattern);
+    }
+
+    private final Glyph[] loaded;
+    private final int[] shown; // cells on the glass per slot
+    private final long[] last_used;
+    private long uses;
+    private long uploads, misses;
+
+    public GlyphCache() {
+        loaded = new Glyph[SLOTS];
+        shown = new int[SLOTS];
+        last_used = new long[SLOTS];
+        reset();
+    }
+
+    /**
+     * we know nothing about the CGRAM, e.g. after init
+     */
+    public void reset() {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            loaded[slot] = null;
+            shown[slot] = 0;
+            last_used[slot] = 0L;
+        }
+    }
+
+    /**
+     * the glass was cleared or is unknown. No slot is shown anymore, but the CGRAM keeps its glyphs.
+     */
+    public void forget_cells() {
+        for (int slot = 0; slot < SLOTS; slot++) shown[slot] = 0;
+    }
+
+    /**
+     * a cell is about to show this character. Uploads the glyph, if necessary.
+     *
+     * @return the character that will really be shown. The fallback, if there was no free slot.
+     */
+    public char acquire(char c, Uploader uploader) {
+        final Glyph glyph = CUSTOM.get(c);
+        if (glyph == null) return c;
+        int slot = slot_of(glyph);
+        if (slot < 0) {
+            slot = free_slot();
+            if (slot < 0) {
+                misses++;
+                return glyph.fallback;
+            }
+            loaded[slot] = glyph;
+            uploader.upload(slot, glyph.pattern);
+            uploads++;
+        }
+        shown[slot]++;
+        last_used[slot] = ++uses;
+        return c;
+    }
+
+    /**
+     * a cell which showed this character is overwritten
+     */
+    public void release(char c) {
+        final Glyph glyph = CUSTOM.get(c);
+        if (glyph == null) return;
+        final int slot = slot_of(glyph);
+        if (slot >= 0 && shown[slot] > 0) shown[slot]--;
+    }
+
+    /**
+     * @param c a character returned by {@link #acquire(char, Uploader)}
+     * @return the code for the display
+     */
+    public byte code(char c) {
+        if (c < 0x80) return (byte) c;
+        final Byte rom = ROM.get(c);
+        if (rom != null) return rom;
+        final Glyph glyph = CUSTOM.get(c);
+        final int slot = glyph == null ? -1 : slot_of(glyph);
+        return slot >= 0 ? (byte) slot : (byte) '?';
+    }
+
+    private int slot_of(Glyph glyph) {
+        for (int slot = 0; slot < SLOTS; slot++) if (loaded[slot] == glyph) return slot;
+        return -1;
+    }
+
+    /**
+     * @return the least recently used slot that is not on the glass. -1 if there is none.
+     */
+    private int free_slot() {
+        int best = -1;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (shown[slot] > 0) continue;
+            if (best < 0 || last_used[slot] < last_used[best]) best = slot;
+        }
+        return best;
+    }
+
+    public JSONObject toJson() {
+        int in_use = 0;
+        for (int slot = 0; slot < SLOTS; slot++) if (shown[slot] > 0) in_use++;
+        return new JSONObject()
+                .put("uploads", uploads)
+                .put("misses", misses)
+                .put("slots_shown", in_use);
+    }
+
+    private static final class Glyph {
+        private final char c, fallback;
+        private final byte[] pattern;
+
+        private Glyph(char c, char fallback, byte[] pattern) {
+            this.c = c;
+            this.fallback = fallback;
+            this.pattern = pattern;
+        }
+    }
+}
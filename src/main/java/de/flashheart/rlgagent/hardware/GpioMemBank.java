@@ -0,0 +1,99 @@
+package de.flashheart.rlgagent.hardware;
+
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The GPIO header of the Raspberry Pi, written directly through the memory mapped registers in /dev/gpiomem. All
+ * pins going HIGH during a tick are set with one write to GPSET0, all pins going LOW with one write to GPCLR0. The
+ * pins still have to be provisioned as outputs by pi4j. This bank only takes over the writes.
+ * <p>
+ * The path can be any file which is at least one page long. So a regular file can stand in for the device when
+ * trying this on a desktop.
+ */
+@Log4j2
+public class GpioMemBank implements OutputBank {
+    private static final int BLOCK_SIZE = 4096;
+    // register offsets as int indices (byte offset / 4). BCM2835 ARM Peripherals, p. 90
+    private static final int GPSET0 = 0x1c / 4;
+    private static final int GPCLR0 = 0x28 / 4;
+
+    // wiringPi numbers (which pi4j uses by default) to BCM numbers. Raspberry Pi Rev 2 and later.
+    private static final int[] WIRING_PI_TO_BCM = new int[]{17, 18, 27, 22, 23, 24, 25, 4, 2, 3, 8, 7, 10, 9, 11, 14,
+            15, 28, 29, 30, 31, 5, 6, 13, 19, 26, 12, 16, 20, 21, 0, 1};
+
+    private final File device;
+    private final IntBuffer registers;
+    private int set_mask, clear_mask;
+    private long flushes, register_writes, staged;
+
+    /**
+     * @param device usually /dev/gpiomem
+     * @throws IOException if the file can't be mapped. The pins should be written via pi4j then.
+     */
+    public GpioMemBank(File device) throws IOException {
+        this.device = device;
+        try (RandomAccessFile file = new RandomAccessFile(device, "rw")) {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, BLOCK_SIZE);
+            registers = buffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(); // the mapping stays valid after close
+        }
+        log.info("GPIO registers mapped from {}", device);
+    }
+
+    /**
+     * @param wiring_pi the pin address as pi4j knows it
+     * @return the BCM number or -1 if there is no such pin
+     */
+    public static int bcm(int wiring_pi) {
+        return wiring_pi >= 0 && wiring_pi < WIRING_PI_TO_BCM.length ? WIRING_PI_TO_BCM[wiring_pi] : -1;
+    }
+
+    /**
+     * @param bit the BCM number of the pin
+     */
+    @Override
+    public synchronized void stage(int bit, boolean high) {
+        final int mask = 1 << bit;
+        if (high) {
+            set_mask |= mask;
+            clear_mask &= ~mask;
+        } else {
+            clear_mask |= mask;
+            set_mask &= ~mask;
+        }
+        staged++;
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (set_mask == 0 && clear_mask == 0) return;
+        if (set_mask != 0) {
+            registers.put(GPSET0, set_mask);
+            register_writes++;
+        }
+        if (clear_mask != 0) {
+            registers.put(GPCLR0, clear_mask);
+            register_writes++;
+        }
+        set_mask = 0;
+        clear_mask = 0;
+        flushes++;
+    }
+
+    @Override
+    public synchronized JSONObject toJson() {
+        return new JSONObject()
+                .put("device", device.getPath())
+                .put("staged", staged)
+                .put("flushes", flushes)
+                .put("register_writes", register_writes);
+    }
+}
@@ -0,0 +1,36 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.json.JSONObject;
+
+/**
+ * An I2C LCD. {@link I2CLCD} only writes the cells that have changed, so every line is handed over.
+ */
+public class HD44780Sink implements DisplaySink {
+    private final String name;
+    private final I2CLCD i2CLCD;
+
+    public HD44780Sink(String name, I2CLCD i2CLCD) {
+        this.name = name;
+        this.i2CLCD = i2CLCD;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getMin_interval() {
+        return 0L;
+    }
+
+    @Override
+    public void show(Frame frame, Frame previous) {
+        for (int r = 0; r < frame.rows(); r++) i2CLCD.update(frame.line(r), r + 1);
+    }
+
+    @Override
+    public JSONObject toJson() {
+        return i2CLCD.toJson();
+    }
+}
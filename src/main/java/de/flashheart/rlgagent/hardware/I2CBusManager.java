@@ -0,0 +1,263 @@
+package de.flashheart.rlgagent.hardware;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CDevice;
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The only one to talk to the i2c bus. Every transfer becomes a transaction which is queued and executed on the
+ * "I2CBus" thread, one after the other. Transactions of SIGNAL devices (port expanders) are always taken before the
+ * ones of DISPLAY devices (the LCD). Within a priority, it's first come first served.
+ * <p>
+ * The devices handed out by this manager implement {@link I2CDevice}, so the drivers don't need to know about it.
+ * A call blocks until its transaction is done. Any waiting a driver does between its calls (like the LCD timings) is
+ * done on the calling thread and does not hold up the bus. A driver which must not wait for the bus, like the
+ * {@link Mcp23017Bank} on the PinHandler thread, can {@link Device#submit(Transaction)} its transactions instead.
+ */
+@Log4j2
+public class I2CBusManager implements Runnable {
+    public enum Priority {SIGNAL, DISPLAY} // in order of importance
+
+    @FunctionalInterface
+    public interface Transaction<T> {
+        T run(I2CDevice device) throws IOException;
+    }
+
+    private final I2CBus bus;
+    private final PriorityBlockingQueue<Job<?>> queue;
+    private final AtomicLong sequence;
+    private final Map<Integer, Device> devices;
+    private final long started;
+    private final Thread thread;
+
+    public I2CBusManager(I2CBus bus) {
+        this.bus = bus;
+        queue = new PriorityBlockingQueue<>(16, Comparator.<Job<?>>comparingInt(job -> job.device.priority.ordinal()).thenComparingLong(job -> job.sequence));
+        sequence = new AtomicLong();
+        devices = new ConcurrentSkipListMap<>();
+        started = System.nanoTime();
+        thread = new Thread(this, "I2CBus");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param address  of the device on the bus
+     * @param priority of all transactions for this device
+     * @return the device. the same object for the same address.
+     * @throws IOException if the bus doesn't know this device
+     */
+    public synchronized Device getDevice(int address, Priority priority) throws IOException {
+        Device device = devices.get(address);
+        if (device == null) {
+            device = new Device(bus.getDevice(address), priority);
+            devices.put(address, device);
+        }
+        return device;
+    }
+
+    @Override
+    public void run() {
+        while (!thread.isInterrupted()) {
+            try {
+                queue.take().execute();
+            } catch (InterruptedException ie) {
+                log.error(ie);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return utilisation and queue latency per device
+     */
+    public JSONObject toJson() {
+        final long elapsed = Math.max(1L, System.nanoTime() - started);
+        JSONObject json = new JSONObject();
+        devices.forEach((address, device) -> json.put(String.format("0x%02x", address), device.toJson(elapsed)));
+        return json.put("queued", queue.size());
+    }
+
+    private static final class Job<T> {
+        private final Device device;
+        private final Transaction<T> transaction;
+        private final long sequence;
+        private final long enqueued;
+        private final CompletableFuture<T> result;
+
+        private Job(Device device, Transaction<T> transaction, long sequence) {
+            this.device = device;
+            this.transaction = transaction;
+            this.sequence = sequence;
+            this.enqueued = System.nanoTime();
+            this.result = new CompletableFuture<>();
+        }
+
+        private void execute() {
+            final long start = System.nanoTime();
+            device.waiting.record(start - enqueued);
+            try {
+                result.complete(transaction.run(device.device));
+            } catch (Exception e) {
+                device.errors.incrementAndGet();
+                result.completeExceptionally(e);
+            } finally {
+                device.busy.addAndGet(System.nanoTime() - start);
+                device.transactions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A device on the managed bus. Every call is one transaction.
+     */
+    public class Device implements I2CDevice {
+        private final I2CDevice device;
+        private final Priority priority;
+        private final JitterHistogram waiting; // time in the queue
+        private final AtomicLong busy, transactions, errors;
+
+        private Device(I2CDevice device, Priority priority) {
+            this.device = device;
+            this.priority = priority;
+            waiting = new JitterHistogram();
+            busy = new AtomicLong();
+            transactions = new AtomicLong();
+            errors = new AtomicLong();
+        }
+
+        /**
+         * queues a transaction without waiting for it
+         */
+        public <T> CompletableFuture<T> submit(Transaction<T> transaction) {
+            Job<T> job = new Job<>(this, transaction, sequence.incrementAndGet());
+            queue.put(job);
+            return job.result;
+        }
+
+        /**
+         * queues a transaction and waits until it is done
+         */
+        public <T> T execute(Transaction<T> transaction) throws IOException {
+            if (Thread.currentThread() == thread) return transaction.run(device); // already on the bus
+            try {
+                return submit(transaction).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+
+        private JSONObject toJson(long elapsed) {
+            return waiting.toJson()
+                    .put("priority", priority.name())
+                    .put("transactions", transactions.get())
+                    .put("errors", errors.get())
+                    .put("utilisation", Math.round(busy.get() * 1000d / elapsed) / 10d); // percent
+        }
+
+        @Override
+        public int getAddress() {
+            return device.getAddress();
+        }
+
+        @Override
+        public void write(byte b) throws IOException {
+            execute(d -> {
+                d.write(b);
+                return null;
+            });
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int size) throws IOException {
+            execute(d -> {
+                d.write(buffer, offset, size);
+                return null;
+            });
+        }
+
+        @Override
+        public void write(byte[] buffer) throws IOException {
+            write(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public void write(int address, byte b) throws IOException {
+            execute(d -> {
+                d.write(address, b);
+                return null;
+            });
+        }
+
+        @Override
+        public void write(int address, byte[] buffer, int offset, int size) throws IOException {
+            execute(d -> {
+                d.write(address, buffer, offset, size);
+                return null;
+            });
+        }
+
+        @Override
+        public void write(int address, byte[] buffer) throws IOException {
+            write(address, buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return execute(I2CDevice::read);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int size) throws IOException {
+            return execute(d -> d.read(buffer, offset, size));
+        }
+
+        @Override
+        public int read(int address) throws IOException {
+            return execute(d -> d.read(address));
+        }
+
+        @Override
+        public int read(int address, byte[] buffer, int offset, int size) throws IOException {
+            return execute(d -> d.read(address, buffer, offset, size));
+        }
+
+        @Override
+        public void ioctl(long command, int value) throws IOException {
+            execute(d -> {
+                d.ioctl(command, value);
+                return null;
+            });
+        }
+
+        @Override
+        public void ioctl(long command, ByteBuffer data, IntBuffer offsets) throws IOException {
+            execute(d -> {
+                d.ioctl(command, data, offsets);
+                return null;
+            });
+        }
+
+        @Override
+        public int read(byte[] writeBuffer, int writeOffset, int writeSize, byte[] readBuffer, int readOffset, int readSize) throws IOException {
+            return execute(d -> d.read(writeBuffer, writeOffset, writeSize, readBuffer, readOffset, readSize));
+        }
+    }
+}
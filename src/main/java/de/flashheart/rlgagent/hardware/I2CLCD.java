@@ -1,16 +1,65 @@
 package de.flashheart.rlgagent.hardware;
 
 import com.pi4j.io.i2c.I2CDevice;
+import org.json.JSONObject;
+
+import java.util.Arrays;
 
 /**
  * https://github.com/Poduzov/PI4J-I2C-LCD/blob/master/I2CLCD.java
+ * <p>
+ * Keeps a shadow of what is currently on the glass. {@link #update(CharSequence, int)} only sends the cells that have
+ * changed. So a countdown costs a cursor positioning and a few characters per second instead of the whole screen.
+ * <p>
+ * In bulk mode, every byte for the display is encoded into its nibble/strobe sequence and collected. The sequence is
+ * sent with one block write at the end of an operation. At 100 kHz every byte on the bus takes about 90µs, which is
+ * longer than any enable pulse or command the HD44780 needs (max 37µs). So we only have to wait after clear, home and
+ * during init. Transfers are limited to MAX_TRANSFER bytes, so the bus is free for the sirens in between.
+ * <p>
+ * Characters outside of ASCII are translated by the {@link GlyphCache}, which also manages the 8 custom glyphs.
  */
 public class I2CLCD {
+    private static final char UNKNOWN = 0xffff; // never on the glass, so the cell is always written
+    private static final int[] ROW_OFFSETS = new int[]{0x00, 0x40, 0x14, 0x54};
+    private static final int BYTES_PER_WRITE = 6; // 2 nibbles with 3 port states each
+    private static final int MAX_TRANSFER = 10 * BYTES_PER_WRITE;
 
     private I2CDevice _device;
-
-    public I2CLCD(I2CDevice device) {
+    private final int cols, rows;
+    private final char[][] glass;
+    private long bytes_sent, bytes_saved;
+    private final GlyphCache glyphs;
+    private final GlyphCache.Uploader uploader;
+    private final char[] run; // the characters of the run being written
+
+    private final boolean bulk;
+    private final byte[] pending;
+    private int pending_size;
+    private long chars_written, nanos_writing;
+
+    /**
+     * @param bulk true for block writes. false for the old way, one write per nibble with sleeps in between.
+     */
+    public I2CLCD(I2CDevice device, int cols, int rows, boolean bulk) {
         _device = device;
+        this.cols = cols;
+        this.rows = rows;
+        this.bulk = bulk;
+        pending = new byte[MAX_TRANSFER];
+        pending_size = 0;
+        glass = new char[rows][cols];
+        glyphs = new GlyphCache();
+        uploader = this::load_glyph;
+        run = new char[cols];
+        invalidate();
+    }
+
+    /**
+     * forget what we know about the glass. The next update writes every cell.
+     */
+    public void invalidate() {
+        for (char[] row : glass) Arrays.fill(row, UNKNOWN);
+        glyphs.forget_cells();
     }
 
     // Write a single command
@@ -124,15 +173,22 @@ public class I2CLCD {
     public void init() {
         try {
             lcd_write((byte) 0x03);
+            settle(5); // HD44780 datasheet, figure 24
             lcd_write((byte) 0x03);
+            settle(1);
             lcd_write((byte) 0x03);
+            settle(1);
             lcd_write((byte) 0x02);
+            settle(1);
 
             lcd_write((byte) (LCD_FUNCTIONSET | LCD_2LINE | LCD_5x8DOTS | LCD_4BITMODE));
             lcd_write((byte) (LCD_DISPLAYCONTROL | LCD_DISPLAYON));
             lcd_write((byte) (LCD_CLEARDISPLAY));
             lcd_write((byte) (LCD_ENTRYMODESET | LCD_ENTRYLEFT));
+            flush_pending();
             Thread.sleep(0, 200000);
+            for (char[] row : glass) Arrays.fill(row, ' '); // the display is clear now
+            glyphs.reset(); // and we don't know what is in the CGRAM
         } catch (Exception ex) {
             System.out.println(ex.getMessage());
         }
@@ -160,48 +216,118 @@ public class I2CLCD {
     }
 
     private void lcd_write(byte cmd, byte mode) {
-        lcd_write_four_bits((byte) (mode | (cmd & 0xF0)));
-        lcd_write_four_bits((byte) (mode | ((cmd << 4) & 0xF0)));
+        if (!bulk) {
+            lcd_write_four_bits((byte) (mode | (cmd & 0xF0)));
+            lcd_write_four_bits((byte) (mode | ((cmd << 4) & 0xF0)));
+            return;
+        }
+        if (pending_size + BYTES_PER_WRITE > pending.length) flush_pending();
+        encode_four_bits((byte) (mode | (cmd & 0xF0)));
+        encode_four_bits((byte) (mode | ((cmd << 4) & 0xF0)));
+    }
+
+    /**
+     * the same port states as lcd_write_four_bits, but into the pending buffer
+     */
+    private void encode_four_bits(byte data) {
+        pending[pending_size++] = (byte) (data | LCD_BACKLIGHT);
+        pending[pending_size++] = (byte) (data | En | LCD_BACKLIGHT);
+        pending[pending_size++] = (byte) ((data & ~En) | LCD_BACKLIGHT);
+    }
+
+    /**
+     * sends everything encoded so far with one block write
+     */
+    private void flush_pending() {
+        if (pending_size == 0) return;
+        try {
+            _device.write(pending, 0, pending_size);
+        } catch (Exception ex) {
+            System.out.println(ex.getMessage());
+        }
+        pending_size = 0;
+    }
+
+    /**
+     * sends what is pending and waits for the display to finish
+     */
+    private void settle(long millis) {
+        flush_pending();
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     // write a command to lcd
     private void lcd_write(byte cmd) {
         lcd_write(cmd, (byte) 0);
+        if (bulk && (cmd == LCD_CLEARDISPLAY || cmd == LCD_RETURNHOME)) settle(2); // 1.52 ms according to the datasheet
     }
 
     // write a character to lcd
     public void write_char(byte charvalue) {
-        byte mode = 1;
-        lcd_write_four_bits((byte) (mode | (charvalue & 0xF0)));
-        lcd_write_four_bits((byte) (mode | ((charvalue << 4) & 0xF0)));
+        lcd_write(charvalue, Rs);
+        flush_pending();
     }
 
     // put string function
     public void display_string(String string, int line) {
-        switch (line) {
-            case 1:
-                lcd_write((byte) 0x80);
-                break;
-            case 2:
-                lcd_write((byte) 0xC0);
-                break;
-            case 3:
-                lcd_write((byte) 0x94);
-                break;
-            case 4:
-                lcd_write((byte) 0xD4);
-                break;
-        }
+        display_string_pos(string, line, 0);
+    }
 
-        for (int i = 0; i < string.length(); i++) {
-            lcd_write((byte) string.charAt(i), Rs);
+    /**
+     * brings a line on the glass up to date. Only runs of changed cells are written. Two runs with a single unchanged
+     * cell in between are written as one, because repositioning the cursor would cost the same.
+     *
+     * @param string the complete line. Padded with blanks or cut to the width of the display.
+     * @param line   1..rows
+     */
+    public void update(CharSequence string, int line) {
+        if (line < 1 || line > rows) return;
+        final long start = System.nanoTime();
+        final char[] cells = glass[line - 1];
+        long sent = 0;
+        int col = 0;
+        while (col < cols) {
+            if (cell(string, col) == cells[col]) {
+                col++;
+                continue;
+            }
+            // a run of changes starts here
+            int end = col + 1; // exclusive
+            for (int c = end; c < cols; c++) {
+                if (cell(string, c) != cells[c]) end = c + 1;
+                else if (c - end >= 1) break; // two unchanged cells in a row. repositioning is cheaper.
+            }
+            // glyphs are uploaded before we position the cursor, because an upload moves the address counter
+            for (int c = col; c < end; c++) glyphs.release(cells[c]);
+            for (int c = col; c < end; c++) run[c - col] = glyphs.acquire(cell(string, c), uploader);
+            lcd_write((byte) (LCD_SETDDRAMADDR + ROW_OFFSETS[line - 1] + col));
+            for (int c = col; c < end; c++) {
+                lcd_write(glyphs.code(run[c - col]), Rs);
+                cells[c] = run[c - col];
+            }
+            sent += 1 + end - col;
+            chars_written += end - col;
+            col = end;
         }
+        flush_pending();
+        nanos_writing += System.nanoTime() - start;
+        bytes_sent += sent;
+        bytes_saved += 1 + cols - sent; // a full line is one positioning and all the cells
+    }
+
+    private char cell(CharSequence string, int col) {
+        return col < string.length() ? string.charAt(col) : ' ';
     }
 
     // clear lcd and set to home
     private void clear() {
         lcd_write((byte) LCD_CLEARDISPLAY);
         lcd_write((byte) LCD_RETURNHOME);
+        for (char[] row : glass) Arrays.fill(row, ' ');
     }
 
     // define backlight on / off(lcd.backlight(1) off = lcd.backlight(0)
@@ -215,35 +341,46 @@ public class I2CLCD {
         }
     }
 
-    // add custom characters(0 - 7)
-    private void load_custom_chars(byte[][] fontdata) {
-
-        lcd_write((byte) 0x40);
-        for (int i = 0; i < fontdata.length; i++) {
-            for (int j = 0; j < fontdata[i].length; j++) {
-                write_char(fontdata[i][j]);
-            }
-        }
+    /**
+     * puts a custom character into CGRAM. The cursor has to be positioned again afterwards.
+     *
+     * @param slot    0..7
+     * @param pattern 8 rows of 5 bits each
+     */
+    private void load_glyph(int slot, byte[] pattern) {
+        lcd_write((byte) (LCD_SETCGRAMADDR | (slot << 3)));
+        for (byte row : pattern) lcd_write(row, Rs);
+        bytes_sent += 1 + pattern.length;
     }
 
     // define precise positioning (addition from the forum)
     public void display_string_pos(String string, int line, int pos) {
-        byte pos_new = 0;
-
-        if (line == 1) {
-            pos_new = (byte) pos;
-        } else if (line == 2) {
-            pos_new = (byte) (0x40 + pos);
-        } else if (line == 3) {
-            pos_new = (byte) (0x14 + pos);
-        } else if (line == 4) {
-            pos_new = (byte) (0x54 + pos);
+        if (line < 1 || line > rows) return;
+        final long start = System.nanoTime();
+        final int len = Math.min(string.length(), cols - pos);
+        for (int i = 0; i < len; i++) glyphs.release(glass[line - 1][pos + i]);
+        for (int i = 0; i < len; i++) run[i] = glyphs.acquire(string.charAt(i), uploader);
+        lcd_write((byte) (LCD_SETDDRAMADDR + ROW_OFFSETS[line - 1] + pos));
+
+        for (int i = 0; i < len; i++) {
+            lcd_write(glyphs.code(run[i]), Rs);
+            glass[line - 1][pos + i] = run[i];
         }
+        flush_pending();
+        nanos_writing += System.nanoTime() - start;
+        chars_written += len;
+        bytes_sent += 1 + len;
+    }
 
-        lcd_write((byte) (0x80 + pos_new));
-
-        for (int i = 0; i < string.length(); i++) {
-            lcd_write((byte) string.charAt(i), Rs);
-        }
+    /**
+     * @return bytes sent to the display, bytes saved by only writing the changed cells and the speed of the writes
+     */
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("bulk", bulk)
+                .put("bytes_sent", bytes_sent)
+                .put("bytes_saved", bytes_saved)
+                .put("chars_per_second", nanos_writing == 0 ? 0 : Math.round(chars_written * 1e9 / nanos_writing))
+                .put("glyphs", glyphs.toJson());
     }
 }
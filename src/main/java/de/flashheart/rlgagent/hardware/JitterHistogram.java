@@ -0,0 +1,75 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how late a loop woke up compared to its deadline. The lateness is sorted into power of two buckets of
+ * microseconds (bucket 0 is below 1µs, bucket n covers [2^(n-1), 2^n) µs), so recording never allocates and
+ * percentiles are accurate to a factor of two. The maximum is kept exactly.
+ * <p>
+ * Written by one loop thread, read by whoever reports the status.
+ */
+public class JitterHistogram {
+    private static final int BUCKETS = 32;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count, max;
+
+    public JitterHistogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * @param lateness_nanos how much later than planned the loop got to work. negative values (early) count as 0.
+     */
+    public void record(long lateness_nanos) {
+        long micros = Math.max(0L, TimeUnit.NANOSECONDS.toMicros(lateness_nanos));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        if (micros > max.get()) max.set(micros);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket containing the percentile in µs
+     */
+    public long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0L;
+        long rank = (long) Math.ceil(total * percentile / 100d);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += buckets.get(b);
+            if (seen >= rank) return Math.min(1L << b, max.get());
+        }
+        return max.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++) buckets.set(b, 0L);
+        count.set(0L);
+        max.set(0L);
+    }
+
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("count", getCount())
+                .put("p50_us", percentile(50))
+                .put("p99_us", percentile(99))
+                .put("max_us", getMax());
+    }
+}
@@ -0,0 +1,93 @@
+package de.flashheart.rlgagent.hardware;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A line of text for the LCD, compiled once when it is set. The text is split into literal segments and the slots of
+ * the variables in between (see {@link VariableTable}). Rendering copies the segments and the current values into a
+ * row buffer and does not create any objects.
+ * <p>
+ * <code>"Time left: ${remaining}"</code> becomes the literals <code>"Time left: "</code> and <code>""</code> with
+ * the slot of <code>remaining</code> in between. A variable which has never been set is shown as it was written,
+ * like the replacement did before.
+ */
+public final class LineTemplate {
+    public static final LineTemplate EMPTY = new LineTemplate("", new String[]{""}, new String[0], new int[0]);
+
+    private final String text;
+    private final String[] literals; // one more than slots
+    private final String[] names;
+    private final int[] slots;
+
+    private LineTemplate(String text, String[] literals, String[] names, int[] slots) {
+        this.text = text;
+        this.literals = literals;
+        this.names = names;
+        this.slots = slots;
+    }
+
+    /**
+     * @param text      with variables like <code>${wifi}</code>
+     * @param variables to look up (or create) the slots
+     * @return the compiled line
+     */
+    public static LineTemplate compile(String text, VariableTable variables) {
+        if (text.isEmpty()) return EMPTY;
+        ArrayList<String> literals = new ArrayList<>();
+        ArrayList<String> names = new ArrayList<>();
+        int pos = 0;
+        while (true) {
+            int open = text.indexOf("${", pos);
+            int close = open < 0 ? -1 : text.indexOf('}', open + 2);
+            if (close < 0) break;
+            literals.add(text.substring(pos, open));
+            names.add(text.substring(open + 2, close));
+            pos = close + 1;
+        }
+        literals.add(text.substring(pos));
+
+        int[] slots = new int[names.size()];
+        for (int i = 0; i < slots.length; i++) slots[i] = variables.slot(names.get(i));
+        return new LineTemplate(text, literals.toArray(new String[0]), names.toArray(new String[0]), slots);
+    }
+
+    /**
+     * writes the line into the row. Cut if it is too long, padded with blanks if it is too short.
+     */
+    public void render(VariableTable variables, char[] row) {
+        int col = 0;
+        for (int i = 0; i < slots.length; i++) {
+            col = put(literals[i], row, col);
+            String value = variables.get(slots[i]);
+            if (value != null) col = put(value, row, col);
+            else col = put("}", row, put(names[i], row, put("${", row, col)));
+        }
+        col = put(literals[slots.length], row, col);
+        Arrays.fill(row, col, row.length, ' ');
+    }
+
+    private static int put(String segment, char[] row, int col) {
+        final int len = Math.min(segment.length(), row.length - col);
+        if (len <= 0) return col;
+        segment.getChars(0, len, row, col);
+        return col + len;
+    }
+
+    /**
+     * @param used the slots of the variables in this line are added here
+     */
+    public void collect_slots(BitSet used) {
+        for (int slot : slots) used.set(slot);
+    }
+
+    public boolean isEmpty() {
+        return text.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
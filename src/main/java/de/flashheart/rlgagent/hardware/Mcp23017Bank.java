@@ -0,0 +1,143 @@
+package de.flashheart.rlgagent.hardware;
+
+import com.pi4j.gpio.extension.mcp.MCP23017Pin;
+import com.pi4j.io.gpio.Pin;
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A MCP23017 port expander on the i2c bus. We keep a shadow of the output latches (OLATA and OLATB) and write both of
+ * them with one 2 byte transfer when the bank is flushed. So 16 pins switching on the same tick cost one write instead
+ * of 16 read-modify-write cycles. The chip must be in its default addressing mode (IOCON.BANK = 0), so OLATB follows
+ * OLATA.
+ * <p>
+ * A flush only queues the write on the {@link I2CBusManager} and returns. So the PinHandler never waits for the bus,
+ * even when the LCD is in the middle of a block write. The writes of a bank are executed in the order of their flushes.
+ * A write that fails is tried again by itself, after 10ms at first and then less and less often (at most once a
+ * second). So a steady state reaches the chip, even if no other flush follows.
+ * <p>
+ * Bits 0-7 are port A, bits 8-15 are port B.
+ */
+@Log4j2
+public class Mcp23017Bank implements OutputBank {
+    private static final int IODIRA = 0x00;
+    private static final int OLATA = 0x14;
+    private static final long FIRST_RETRY = 10L, LAST_RETRY = 1000L; // ms
+    private static final ScheduledExecutorService RETRIES = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MCP23017 retries");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final I2CBusManager.Device device;
+    private final int address;
+    private int directions; // 1 = input, which is the power on default
+    private int latches; // the shadow of OLATA/OLATB
+    private boolean dirty;
+    private long retry; // ms until the next try. 0 when the last write went through.
+    private long flushes, bytes_written, staged, errors;
+
+    public Mcp23017Bank(I2CBusManager.Device device, int address) {
+        this.device = device;
+        this.address = address;
+        directions = 0xffff;
+        latches = 0;
+        dirty = false;
+    }
+
+    /**
+     * @param name a pin name as pi4j knows it, e.g. "GPIO A0" or "GPIO B7"
+     * @return the bit within the bank or -1 if there is no such pin
+     */
+    public static int bit(String name) {
+        Pin[] pins = MCP23017Pin.ALL; // A0..A7, B0..B7
+        for (int bit = 0; bit < pins.length; bit++) if (pins[bit].getName().equalsIgnoreCase(name.trim())) return bit;
+        return -1;
+    }
+
+    /**
+     * turns a pin into an output. The latch is written first, so the pin starts with the right level.
+     *
+     * @param bit  0-15
+     * @param high the initial level
+     * @throws IOException if the chip can't be reached
+     */
+    public synchronized void provision(int bit, boolean high) throws IOException {
+        stage(bit, high);
+        write_latches();
+        directions &= ~(1 << bit);
+        device.write(IODIRA, new byte[]{(byte) directions, (byte) (directions >> 8)}, 0, 2);
+    }
+
+    @Override
+    public synchronized void stage(int bit, boolean high) {
+        final int before = latches;
+        if (high) latches |= 1 << bit;
+        else latches &= ~(1 << bit);
+        dirty |= before != latches;
+        staged++;
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (!dirty) return;
+        final byte[] olat = olat();
+        dirty = false;
+        flushes++;
+        bytes_written += 2;
+        device.submit(d -> {
+            d.write(OLATA, olat, 0, 2);
+            return null;
+        }).whenComplete((ignored, e) -> {
+            if (e != null) failed(e);
+            else succeeded();
+        });
+    }
+
+    /**
+     * called on the bus thread
+     */
+    private synchronized void succeeded() {
+        retry = 0L;
+    }
+
+    /**
+     * called on the bus thread. The latches are written again later, unless a newer flush gets through first.
+     */
+    private synchronized void failed(Throwable e) {
+        errors++;
+        dirty = true;
+        if (retry == 0L) log.warn("MCP23017 {} - {}", String.format("0x%02x", address), e.getMessage());
+        retry = retry == 0L ? FIRST_RETRY : Math.min(LAST_RETRY, retry * 2);
+        RETRIES.schedule(this::flush, retry, TimeUnit.MILLISECONDS);
+    }
+
+    private void write_latches() throws IOException {
+        device.write(OLATA, olat(), 0, 2);
+        bytes_written += 2;
+        dirty = false;
+    }
+
+    private byte[] olat() {
+        return new byte[]{(byte) latches, (byte) (latches >> 8)};
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    @Override
+    public synchronized JSONObject toJson() {
+        return new JSONObject()
+                .put("address", String.format("0x%02x", address))
+                .put("staged", staged)
+                .put("flushes", flushes)
+                .put("bytes_written", bytes_written)
+                .put("errors", errors);
+    }
+}
@@ -0,0 +1,44 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.function.Consumer;
+
+/**
+ * Publishes the display content, e.g. on the event topic <code>display</code>, so the commander can show what the
+ * players see. The interval keeps the traffic down while a timer is running.
+ * <pre>
+ * {"lines": ["Time left: 04:59", "", "", ""]}
+ * </pre>
+ */
+public class MirrorSink implements DisplaySink {
+    private final Consumer<String> publisher;
+    private final long min_interval;
+
+    /**
+     * @param publisher    sends the payload
+     * @param min_interval in ms
+     */
+    public MirrorSink(Consumer<String> publisher, long min_interval) {
+        this.publisher = publisher;
+        this.min_interval = min_interval;
+    }
+
+    @Override
+    public String getName() {
+        return "mirror";
+    }
+
+    @Override
+    public long getMin_interval() {
+        return min_interval;
+    }
+
+    @Override
+    public void show(Frame frame, Frame previous) {
+        JSONArray lines = new JSONArray();
+        for (int r = 0; r < frame.rows(); r++) lines.put(frame.line(r));
+        publisher.accept(new JSONObject().put("lines", lines).toString());
+    }
+}
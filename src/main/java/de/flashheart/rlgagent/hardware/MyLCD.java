@@ -1,88 +1,108 @@
 package de.flashheart.rlgagent.hardware;
 
-import de.flashheart.rlgagent.hardware.I2CLCD;
 import de.flashheart.rlgagent.misc.AbstractConfigs;
 import de.flashheart.rlgagent.misc.Configs;
-import de.flashheart.rlgagent.misc.Tools;
-import de.flashheart.rlgagent.ui.MyUI;
 import lombok.extern.log4j.Log4j2;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
 import org.json.JSONException;
+import org.json.JSONObject;
 
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 @Log4j2
 /**
- * This class is handling the hardware of a Hitachie I2C LCD display and (at the same time) simulates the output on a desktop
- * screen, if available. It organizes the display in pages which can be added during runtime by naming it with a
+ * This class is handling the content of the display. Every frame is rendered once and handed over to all
+ * {@link DisplaySink}s, like Hitachie I2C LCD displays, the simulated output on a desktop screen (if available) or a
+ * mirror topic on the broker. It organizes the display in pages which can be added during runtime by naming it with a
  * string handle. There is always a page called "page0". Pages cycle through with a delaytime of cycles_per_page *
  * MILLIS_PER_CYCLE (4*500ms by default) The CYCLES_PER_PAGE can be changed during runtime.
+ * <p>
+ * There is no fixed refresh rate. A frame is only rendered when a variable used on the visible page has changed, a
+ * line of the visible page was set, or the pages rotated. Timers are calculated exactly when their displayed second
+ * changes, so countdowns flip on the second.
+ * <p>
+ * There are no locks. Pages live in a {@link PageStore}, variables in a {@link VariableTable} and timers in a
+ * {@link TimerEngine}. The command threads only publish changes. The display thread renders from the snapshot it has
+ * taken at the start of a cycle. Only the command threads synchronize on the bar graphs, when they create or drop them.
  */
 public class MyLCD implements Runnable {
-    public static final char LCD_DEGREE_SYMBOL = 223;
-    public static final char LCD_UMLAUT_A = 0xe4;
+    // translated into the codes of the character ROM by the GlyphCache
+    public static final char LCD_DEGREE_SYMBOL = '°';
+    public static final char LCD_UMLAUT_A = 'ä';
 
     private int cycles_per_page = 4;
     private final long MILLIS_PER_CYCLE = 500l;
 
     private final int cols, rows;
     private final Thread thread;
+    private final SignalClock clock;
+    private final SignalClock.Loop loop;
 
     // timers section
     // it may seem odd, but for the agent all timers are just
     // something that will show up on the display
     // so we maintain them here
-    private long time_difference_since_last_cycle;
-    // left Long = starting value -> never changes
-    // right Long = decreasing value ends with 0
-    private HashMap<String, Pair<Long, Long>> timers;
-    private HashMap<String, String> variables; // replacement variables for text lines containing something like ${template}
-
-    private long last_cycle_started_at;
-    private ArrayList<LCDPage> pages;
-
+    private final TimerEngine timers;
+    private final TimerEngine.Listener timer_listener;
+    private final VariableTable variables; // replacement variables for text lines containing something like ${template}
+    private final Map<String, TimerEngine.Subscription> bars; // by variable name. guarded by itself.
+    private final char[] row; // the line being rendered. display thread only.
+    // every sink gets the rendered frames through its own writer
+    private final List<SinkWriter> writers;
+    private volatile Frame last_frame;
+
+    private final PageStore pages;
+
+    // display thread only
     private int visible_page_index = 0;
-    private long loopcounter = 0;
-    private ReentrantLock lock;
-    private Optional<I2CLCD> i2CLCD;
-    private final Optional<MyUI> myUI;
+    private long generation; // of the page snapshot we have seen last
+    private PageStore.Page rendered_page; // the page of the last frame
+    private long next_rotation; // in terms of clock.now()
+    private final AtomicBoolean dirty; // the visible page needs to be rendered
+    private volatile BitSet visible_slots; // the variables used on the visible page
     private final Configs configs;
-    private final Set<PropertyChangeListener> propertyChangeListeners;
 
 
     /**
-     * @param myUI    if we are running on a desktop, we will receive a handle to the gui. this gui is used to simulate
-     *                the display behaviour on the screen
      * @param configs the configs object for reading settings
-     * @param i2CLCD  if there is a HD44780 based i2c lcd display, we will have a reference here
+     * @param sinks   where the display content goes. HD44780 based i2c lcd displays and, if we are running on a
+     *                desktop, the gui which simulates the display behaviour on the screen.
+     * @param clock   the common time base. the cycles are scheduled on absolute deadlines.
      */
-    public MyLCD(Optional<MyUI> myUI, Configs configs, Optional<I2CLCD> i2CLCD) {
+    public MyLCD(Configs configs, List<DisplaySink> sinks, SignalClock clock) {
         this.cols = Integer.parseInt(configs.get(Configs.LCD_COLS));
         this.rows = Integer.parseInt(configs.get(Configs.LCD_ROWS));
-        this.myUI = myUI;
         this.configs = configs;
-        this.i2CLCD = i2CLCD;
-        timers = new HashMap<>();
-        variables = new HashMap<>();
-
-        // create lines on the gui
-        myUI.ifPresent(myUI1 -> {
-            for (int l = 0; l < rows; l++) {
-                myUI1.addLCDLine(cols);
+        this.clock = clock;
+        this.loop = clock.loop("lcd");
+        timers = new TimerEngine(clock);
+        timer_listener = new TimerEngine.Listener() {
+            @Override
+            public void changed(TimerEngine.Timer timer, String text) {
+                log.trace("time {} is now {}", timer.getName(), text);
+                setVariable(timer.getName(), text);
             }
+
+            @Override
+            public void expired(TimerEngine.Timer timer) {
+                setVariable(timer.getName(), "--");
+            }
+        };
+        dirty = new AtomicBoolean(true);
+        visible_slots = new BitSet();
+        bars = new HashMap<>();
+        row = new char[cols];
+        variables = new VariableTable(slot -> {
+            if (visible_slots.get(slot)) request_render();
         });
+        writers = new CopyOnWriteArrayList<>();
+        sinks.forEach(this::add_sink);
 
-        lock = new ReentrantLock();
         thread = new Thread(this);
-        pages = new ArrayList<>();
-        propertyChangeListeners = new HashSet<>();
+        pages = new PageStore(rows);
         init();
         thread.start();
     }
@@ -98,52 +118,28 @@ public class MyLCD implements Runnable {
      * removes all pages but one "page0"
      */
     public void init() {
-        lock.lock();
-        try {
-            pages.clear();
-            pages.add(new LCDPage("page0"));
-            visible_page_index = 0;
-            // set defaults for variables
-            setVariable("wifi", "--");
-            setVariable("wifi_signal", "YX"); // Dummy signal
-            setVariable("ssid", "--");
-            setVariable("agversion", configs.getBuildProperties("my.version"));
-            setVariable("agbuild", configs.getBuildProperties("buildNumber"));
-            setVariable("agbdate", configs.getBuildProperties("buildDate"));
-            setVariable("agentname", configs.get(Configs.MY_ID));
-
-            welcome_page();
-
-        } finally {
-            lock.unlock();
-        }
-    }
-
-    /**
-     * sets the visible page
-     *
-     * @param handle the page that should be visible
-     */
-    Optional<LCDPage> getPage(String handle) {
-        return pages.stream().filter(lcdPage -> lcdPage.getName().equalsIgnoreCase(handle)).findFirst();
+        pages.reset();
+        drop_unused_bars();
+        request_render();
+        // set defaults for variables
+        setVariable("wifi", "--");
+        setVariable("wifi_signal", "YX"); // Dummy signal
+        setVariable("ssid", "--");
+        setVariable("agversion", configs.getBuildProperties("my.version"));
+        setVariable("agbuild", configs.getBuildProperties("buildNumber"));
+        setVariable("agbdate", configs.getBuildProperties("buildDate"));
+        setVariable("agentname", configs.get(Configs.MY_ID));
+
+        welcome_page();
     }
 
-
     /**
      * Adds a new page
      *
      * @param handle to access the page
      */
     public void addPage(String handle) {
-        if (handle.equalsIgnoreCase("page0")) return;
-        if (pageExists(handle)) return;
-        lock.lock();
-        log.trace("adding page {}", handle);
-        try {
-            pages.add(new LCDPage(handle));
-        } finally {
-            lock.unlock();
-        }
+        if (pages.add(handle)) log.trace("adding page {}", handle);
     }
 
 
@@ -153,197 +149,199 @@ public class MyLCD implements Runnable {
      * @param handle of page to be deleted
      */
     public void delPage(String handle) {
-        if (handle.equalsIgnoreCase("page0")) return;
-        if (!pageExists(handle)) return;
+        if (!pages.remove(handle)) return;
         log.trace("deleting page {}", handle);
-        lock.lock();
-        try {
-            try {
-                pages.removeIf(lcdPage -> lcdPage.getName().equalsIgnoreCase(handle));
-                visible_page_index = 0;
-                display_active_page();
-            } catch (Exception e) {
-                log.error(e);
-            }
-        } finally {
-            lock.unlock();
-        }
-    }
-
-    private void next_page() {
-        log.trace("pages size {}", pages.size());
-        if (pages.size() == 1) return;
-
-        lock.lock();
-        try {
-            visible_page_index++;
-            if (visible_page_index >= pages.size()) visible_page_index = 0;
-            log.trace("index of active_page {}", visible_page_index);
-        } catch (Exception e) {
-            log.error(e);
-        } finally {
-            lock.unlock();
-        }
-
+        drop_unused_bars();
+        request_render();
     }
 
     /**
-     * All content changes on lines and pages are done on virtual pages in the background. This method reads the
-     * currently active background page and writes it to the visible display (onto the destop screen AND the LCD)
+     * All content changes on lines and pages are done on virtual pages in the background. This method renders the
+     * visible page of the snapshot once into a {@link Frame} and hands it over to all sinks (like the destop screen
+     * AND the LCD). The templates render into the same row buffer, but every frame still creates one String per line
+     * and the Frame itself, as the sinks keep them.
      */
-    private void display_active_page() {
+    private void display_page(PageStore.Page page) {
+        rendered_page = page;
+        visible_slots = page.slots();
+        final String[] lines = new String[rows];
         for (int r = 0; r < rows; r++) {
-            String line = pages.get(visible_page_index).getLine(r).isEmpty() ? StringUtils.repeat(" ", cols) : StringUtils.rightPad(StringUtils.left(pages.get(visible_page_index).getLine(r), cols), cols); // -1 ??
-            log.trace("VISIBLE PAGE #" + visible_page_index + " Line" + r + ": " + line);
-            if (i2CLCD.isPresent()) {
-                i2CLCD.get().display_string(line, r + 1);
-            }
-            if (myUI.isPresent()) {
-                myUI.get().setLine(r, line);
-            }
-
+            page.render(r, variables, row);
+            lines[r] = new String(row);
+            log.trace("VISIBLE PAGE #{} Line{}: {}", visible_page_index, r, lines[r]);
         }
+        final Frame frame = new Frame(lines, clock.now());
+        last_frame = frame;
+        writers.forEach(writer -> writer.offer(frame));
     }
 
-    private void clearPage() {
-        pages.get(visible_page_index).clear();
+    /**
+     * adds another output for the display content. It starts with the current frame.
+     */
+    public void add_sink(DisplaySink sink) {
+        SinkWriter writer = new SinkWriter(sink, clock);
+        writers.add(writer);
+        if (last_frame != null) writer.offer(last_frame);
     }
 
     public boolean pageExists(String handle) { // not in pyAgent
-        return pages.stream().filter(lcdPage -> lcdPage.getName().equalsIgnoreCase(handle)).count() > 0;
+        return pages.snapshot().contains(handle);
     }
 
     /**
+     * A bar graph, that was only used in the replaced line, is dropped.
+     *
      * @param handle for the wanted page. Will be created if necessary.
      * @param line   1..rows
      * @param text
      */
     public void setLine(String handle, int line, String text) {
-        if (!pageExists(handle)) addPage(handle);
         if (line < 1 || line > rows) return;
-        getPage(handle).ifPresent(lcdPage -> lcdPage.setLine(line - 1, text));
+        if (text.contains("${" + BarGraph.PREFIX)) {
+            synchronized (bars) { // so the bars are not dropped before the line is on its page
+                text = add_bars(text);
+                pages.set_line(handle, line - 1, LineTemplate.compile(text, variables));
+            }
+        } else pages.set_line(handle, line - 1, LineTemplate.compile(text, variables));
+        drop_unused_bars();
+        // the display thread finds out by itself, whether this page is visible
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * creates the bar graphs used in the line, unless they exist already
+     *
+     * @return the text with the width of every bar
+     */
+    private String add_bars(String text) {
+        final String expanded = BarGraph.with_widths(text, cols);
+        BarGraph.bars(expanded).forEach(name -> bars.computeIfAbsent(name, key -> {
+            BarGraph bar = new BarGraph(key, variables);
+            return subscribe(bar.getTimer(), bar.getThresholds(), bar);
+        }));
+        return expanded;
+    }
+
+    /**
+     * unsubscribes the bar graphs which are not used on any page anymore
+     */
+    private void drop_unused_bars() {
+        synchronized (bars) {
+            if (bars.isEmpty()) return;
+            final BitSet used = new BitSet();
+            final PageStore.Snapshot snapshot = pages.snapshot();
+            for (int i = 0; i < snapshot.size(); i++) used.or(snapshot.get(i).slots());
+            bars.entrySet().removeIf(bar -> {
+                if (used.get(variables.slot(bar.getKey()))) return false;
+                log.trace("dropping {}", bar.getKey());
+                unsubscribe(bar.getValue());
+                return true;
+            });
+        }
+    }
+
+    /**
+     * the visible page has to be rendered again. Wakes up the display thread.
+     */
+    private void request_render() {
+        dirty.set(true);
+        LockSupport.unpark(thread);
     }
 
     /**
      * the calculation of the timer is one of the few things the agent does on its own. It simply counts down a given
      * remaining timer (which has been broadcasted by the commander). When it runs out, the timer simply disappears from
      * the display. That's it.
+     *
+     * @return clock time when the displayed second of the next timer changes or the next threshold is crossed.
+     * Long.MAX_VALUE if there are no timers.
      */
-    private void calculate_timers() {
-        final long now = System.currentTimeMillis();
-        time_difference_since_last_cycle = now - last_cycle_started_at;
-        last_cycle_started_at = now;
-
-        // remove all variables when the timers are zero and below
-        timers.entrySet().stream().filter(stringPairEntry -> stringPairEntry.getValue().getRight() - time_difference_since_last_cycle <= 0).forEach(stringPairEntry -> setVariable(stringPairEntry.getKey(), "--"));
-        // notify everybody about timers that ran out
-        timers.entrySet().stream().filter(stringPairEntry -> stringPairEntry.getValue().getRight() - time_difference_since_last_cycle < 0).forEach(stringPairEntry ->
-                fireStateReached(new PropertyChangeEvent(this, stringPairEntry.getKey(), stringPairEntry.getValue().getLeft(), 0l)));
-        // remove all timers that are zero and below
-        timers.entrySet().removeIf(stringPairEntry -> stringPairEntry.getValue().getRight() - time_difference_since_last_cycle < 0);
-        // recalculate all timers
-        timers.replaceAll((key, longPair) -> new ImmutablePair<>(longPair.getLeft(), longPair.getRight() - time_difference_since_last_cycle));
-        // re-set all variables
-        timers.entrySet().forEach(stringPairEntry -> {
-            log.trace("time {} is now {}", stringPairEntry.getKey(), stringPairEntry.getValue().getRight());
-            String pattern = stringPairEntry.getValue().getRight() / 1000l >= 3600 ? "HH:mm:ss" : "mm:ss";
-            String new_time_value = LocalTime.ofSecondOfDay(stringPairEntry.getValue().getRight() / 1000l).format(DateTimeFormatter.ofPattern(pattern));
-            setVariable(stringPairEntry.getKey(), new_time_value);
-            // this event will be sent out to realize a Progress Bar via the LEDs.
-            fireStateReached(new PropertyChangeEvent(this, stringPairEntry.getKey(), stringPairEntry.getValue().getLeft(), stringPairEntry.getValue().getRight()));
-        });
+    private long calculate_timers() {
+        return timers.tick(timer_listener);
     }
 
     public void setTimer(String key, long time) {
         log.trace("setting timer {} to {}", key, time);
         long initial_value = (time + 1) * 1000l; // we have to add one second here so the display fits to the timer notion of the players.
-        timers.put(key, new ImmutablePair<>(initial_value, initial_value));
+        timers.set(key, initial_value);
+        request_render();
     }
 
     public void clear_timers() {
-        timers.forEach((key, longLongPair) -> {
-            setVariable(key, "--");
-            fireStateReached(new PropertyChangeEvent(this, key, 0l, 0l));
-        }); // tidy up first
-        timers.clear();
+        timers.clear().forEach(timer -> setVariable(timer.getName(), "--")); // tidy up first
+        drop_unused_bars();
+        request_render();
+    }
+
+    /**
+     * Progress bars and the like use this to learn when a timer has passed certain points. The listener is called on
+     * the display thread and must not block.
+     *
+     * @param timer    name of the timer
+     * @param ratios   of the elapsed time
+     * @param listener to be called when a threshold is crossed
+     * @return the subscription, to unsubscribe later
+     */
+    public TimerEngine.Subscription subscribe(String timer, double[] ratios, TimerEngine.ThresholdListener listener) {
+        TimerEngine.Subscription subscription = timers.subscribe_ratios(timer, ratios, listener);
+        LockSupport.unpark(thread); // the next threshold may be due before the next second
+        return subscription;
+    }
+
+    public void unsubscribe(TimerEngine.Subscription subscription) {
+        timers.unsubscribe(subscription);
     }
 
     public void setVariable(String key, String var) {
         log.trace("setting var {} to {}", key, var);
-        variables.put("${" + key + "}", var);
+        variables.set(key, var);
     }
 
     @Override
     public void run() {
+        final long page_period = TimeUnit.MILLISECONDS.toNanos(cycles_per_page * MILLIS_PER_CYCLE);
+        next_rotation = clock.now() + page_period;
         while (!thread.isInterrupted()) {
+            final long now = clock.now();
+            long wake_up = now + page_period;
             try {
-                lock.lock();
-                try {
-
-                    if (pages.size() > 1 && loopcounter % cycles_per_page == 0) {
-                        next_page();
+                final PageStore.Snapshot snapshot = pages.snapshot();
+                if (snapshot.getGeneration() != generation) { // pages were deleted. start over.
+                    generation = snapshot.getGeneration();
+                    visible_page_index = 0;
+                }
+                if (visible_page_index >= snapshot.size()) visible_page_index = 0;
+
+                if (now - next_rotation >= 0) {
+                    next_rotation += page_period;
+                    if (now - next_rotation >= 0) next_rotation = now + page_period; // we are way behind. start over.
+                    if (snapshot.size() > 1) {
+                        visible_page_index = (visible_page_index + 1) % snapshot.size();
+                        log.trace("index of active_page {}", visible_page_index);
                     }
+                }
 
-                    calculate_timers();
-                    display_active_page();
+                // timer variables only change when a displayed second has passed. that makes the page dirty.
+                final long next_event = calculate_timers();
+                // pages are never changed, only replaced. so a different page means new content.
+                final PageStore.Page page = snapshot.get(visible_page_index);
+                if (dirty.getAndSet(false) | page != rendered_page) display_page(page);
 
-                } catch (Exception ex) {
-                    log.error(ex);
-                } finally {
-                    lock.unlock();
-                }
-                Thread.sleep(MILLIS_PER_CYCLE);
-                loopcounter++;
-            } catch (InterruptedException ie) {
-                log.error(ie);
+                wake_up = next_event != Long.MAX_VALUE && next_event - next_rotation < 0 ? next_event : next_rotation;
+            } catch (Exception ex) {
+                log.error(ex);
             }
+            loop.park_until(wake_up); // returns early when there is something new to render
         }
     }
 
 
-    private void fireStateReached(PropertyChangeEvent propertyChangeEvent) {
-        propertyChangeListeners.forEach(listener -> listener.propertyChange(propertyChangeEvent));
-    }
-
-    public void addPropertyChangeListener(PropertyChangeListener toAdd) {
-        propertyChangeListeners.add(toAdd);
-    }
-
-
     /**
-     * internal helper class to store the contents of a page
+     * @return statistics for the status message
      */
-    private class LCDPage {
-        // Start stepping through the array from the beginning
-        private ArrayList<String> lines;
-        private final String name;
-
-        public LCDPage(String name) {
-            this.name = name;
-            this.lines = new ArrayList<>(rows);
-            clear();
-        }
-
-        public String getName() {
-            return name;
-        }
-
-        public void setLine(int num, String text) {
-            lines.set(num, text);
-        }
-
-        public String getLine(int num) {
-            /* replace timers with their variables, if present */
-            return Tools.replaceVariables(lines.get(num), variables);
-        }
-
-        public void clear() {
-            lines.clear();
-            for (int r = 0; r < rows; r++) {
-                lines.add("");
-                setLine(r, "");
-            }
-        }
+    public JSONObject getStatistics() {
+        JSONObject json = new JSONObject();
+        writers.forEach(writer -> json.put(writer.getSink().getName(), writer.toJson()));
+        return json;
     }
 }
-
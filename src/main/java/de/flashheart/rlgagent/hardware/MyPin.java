@@ -1,7 +1,5 @@
 package de.flashheart.rlgagent.hardware;
 
-import com.pi4j.gpio.extension.mcp.MCP23017GpioProvider;
-import com.pi4j.gpio.extension.mcp.MCP23017Pin;
 import com.pi4j.io.gpio.*;
 import de.flashheart.rlgagent.misc.Configs;
 import de.flashheart.rlgagent.ui.MyUI;
@@ -10,7 +8,7 @@ import lombok.extern.log4j.Log4j2;
 import javax.sound.midi.MidiChannel;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.Synthesizer;
-import java.util.Arrays;
+import java.io.IOException;
 import java.util.Optional;
 
 /**
@@ -19,6 +17,9 @@ import java.util.Optional;
 @Log4j2
 public class MyPin {
     private final Optional<GpioPinDigitalOutput> outputPin;
+    // when present, the state is staged in a bank and written by the PinHandler at the end of the tick
+    private final Optional<OutputBank> bank;
+    private final int bit;
     private final String name;
     private final Optional<MyUI> myUI;
     private final int note;
@@ -28,8 +29,8 @@ public class MyPin {
     private boolean on = false;
 
 
-    public MyPin(String name, Configs configs, Optional<MyUI> myUI, Optional<GpioController> gpio, Optional<MCP23017GpioProvider> gpioProvider, int instrument, int note) {
-        this(name, configs, myUI, gpio, gpioProvider, instrument, note, true);
+    public MyPin(String name, Configs configs, Optional<MyUI> myUI, Optional<GpioController> gpio, OutputBanks banks, int instrument, int note) {
+        this(name, configs, myUI, gpio, banks, instrument, note, true);
     }
 
     /**
@@ -37,21 +38,27 @@ public class MyPin {
      * @param configs
      * @param myUI
      * @param gpio
-     * @param gpioProvider    only valid when running on a Raspberry
+     * @param banks           pins on the GPIO header are written via /dev/gpiomem, if it is available there. Pins on
+     *                        a MCP23017 are always written via their bank. Those pins are configured like
+     *                        <code>0x21:GPIO A0</code>. Without an address, the first expander is used.
      * @param instrument      MIDI instrument to simulate a siren signal in the GUI version
      * @param note            to simulate a siren signal in the GUI version
      * @param trigger_on_high true (which is default) means, that on will set the pin to HIGH. false, means ON sets the
      *                        pin to LOW. Mainly necessary for relais boards, which come in two flavors.
      */
-    public MyPin(String name, Configs configs, Optional<MyUI> myUI, Optional<GpioController> gpio, Optional<MCP23017GpioProvider> gpioProvider, int instrument, int note, boolean trigger_on_high) {
+    public MyPin(String name, Configs configs, Optional<MyUI> myUI, Optional<GpioController> gpio, OutputBanks banks, int instrument, int note, boolean trigger_on_high) {
         this.name = name;
         this.myUI = myUI;
         this.note = note;
         this.trigger_on_high = trigger_on_high;
+        Optional<OutputBank> bank = Optional.empty();
+        int bit = -1;
 
         if (gpio.isPresent()) {
-            Optional<Pin> raspiPin = Optional.ofNullable(RaspiPin.getPinByName(configs.get(name)));
-            Optional<Pin> mcpPin = Arrays.stream(MCP23017Pin.ALL).sequential().filter(pin1 -> pin1.getName().equalsIgnoreCase(configs.get(name))).findFirst();
+            final String spec = configs.get(name);
+            Optional<Pin> raspiPin = Optional.ofNullable(RaspiPin.getPinByName(spec));
+            final int colon = spec.indexOf(':');
+            final int mcp_bit = Mcp23017Bank.bit(spec.substring(colon + 1));
 
             // if the connected device expects the pin state "reversed". like many relay boards.
             final PinState init_state = trigger_on_high ? PinState.LOW : PinState.HIGH;
@@ -59,8 +66,21 @@ public class MyPin {
             if (raspiPin.isPresent()) {
                 outputPin = Optional.of(gpio.get().provisionDigitalOutputPin(raspiPin.get()));
                 outputPin.get().setState(init_state);
-            } else if (mcpPin.isPresent() && gpioProvider.isPresent()) {
-                outputPin = Optional.of(gpio.get().provisionDigitalOutputPin(gpioProvider.get(), mcpPin.get(), init_state));
+                // pi4j has set up the pin as an output. from now on we write the registers ourselves, if we can.
+                bit = GpioMemBank.bcm(raspiPin.get().getAddress());
+                if (bit >= 0 && banks.getGpiomem().isPresent()) bank = Optional.of(banks.getGpiomem().get());
+            } else if (mcp_bit >= 0) {
+                outputPin = Optional.empty();
+                Optional<Mcp23017Bank> expander = colon < 0 ? banks.getMcp23017() : banks.getMcp23017(Integer.decode(spec.substring(0, colon).trim()));
+                if (expander.isPresent()) {
+                    try {
+                        expander.get().provision(mcp_bit, init_state.isHigh());
+                        bank = Optional.of(expander.get());
+                        bit = mcp_bit;
+                    } catch (IOException e) {
+                        log.warn("{} can't be used - {}", name, e.getMessage());
+                    }
+                } else log.warn("no MCP23017 for {} ({})", name, spec);
             } else {
                 outputPin = Optional.empty();
             }
@@ -82,7 +102,9 @@ public class MyPin {
             }
         }
 
-        log.debug("adding MyPin " + name);
+        this.bank = bank;
+        this.bit = bit;
+        log.debug("adding MyPin " + name + (bank.isPresent() ? " on bank bit " + bit : ""));
 
     }
 
@@ -95,7 +117,8 @@ public class MyPin {
         this.on = on;
         // trigger_on_high can invert the PinState / only for hardware not for UI
         // simplified trigger_on_high ? on : !on to trigger_on_high == on
-        outputPin.ifPresent(gpioPinDigitalOutput -> gpioPinDigitalOutput.setState(trigger_on_high == on ? PinState.HIGH : PinState.LOW));
+        if (bank.isPresent()) bank.get().stage(bit, trigger_on_high == on);
+        else outputPin.ifPresent(gpioPinDigitalOutput -> gpioPinDigitalOutput.setState(trigger_on_high == on ? PinState.HIGH : PinState.LOW));
         log.trace("{}: trigger_on_high {} => {}", trigger_on_high, getName(), (on ? "ON" : "off"));
 
         myUI.ifPresent(myUI1 -> myUI1.setState(name, on));
@@ -0,0 +1,28 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.json.JSONObject;
+
+/**
+ * A group of output pins which can be written in one go. The pins only stage their new state here. The PinHandler
+ * flushes all banks once per tick, so every pin that switches on the same edge really switches at the same time.
+ */
+public interface OutputBank {
+
+    /**
+     * remembers the new level of a pin. Nothing is written yet.
+     *
+     * @param bit  the position of the pin within the bank
+     * @param high the electrical level. MyPin has already dealt with trigger_on_high.
+     */
+    void stage(int bit, boolean high);
+
+    /**
+     * writes all staged changes to the hardware. Does nothing if there are none.
+     */
+    void flush();
+
+    /**
+     * @return statistics for the status message
+     */
+    JSONObject toJson();
+}
@@ -0,0 +1,70 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * All output banks of the agent. The banks are added once during startup, when the hardware is initialized. The
+ * PinHandler flushes them after every tick.
+ */
+public class OutputBanks {
+    private final CopyOnWriteArrayList<OutputBank> banks;
+    private final CopyOnWriteArrayList<Mcp23017Bank> mcp23017;
+    private volatile Optional<GpioMemBank> gpiomem;
+
+    public OutputBanks() {
+        banks = new CopyOnWriteArrayList<>();
+        mcp23017 = new CopyOnWriteArrayList<>();
+        gpiomem = Optional.empty();
+    }
+
+    public void add(GpioMemBank bank) {
+        gpiomem = Optional.of(bank);
+        banks.add(bank);
+    }
+
+    public void add(Mcp23017Bank bank) {
+        mcp23017.add(bank);
+        banks.add(bank);
+    }
+
+    /**
+     * @return the memory mapped GPIO header, if we have one. Pins on the header are written via pi4j otherwise.
+     */
+    public Optional<GpioMemBank> getGpiomem() {
+        return gpiomem;
+    }
+
+    /**
+     * @param address of the expander on the i2c bus
+     * @return the expander with this address, if there is one
+     */
+    public Optional<Mcp23017Bank> getMcp23017(int address) {
+        return mcp23017.stream().filter(bank -> bank.getAddress() == address).findFirst();
+    }
+
+    /**
+     * @return the first configured expander. Used for pins without an address.
+     */
+    public Optional<Mcp23017Bank> getMcp23017() {
+        return mcp23017.isEmpty() ? Optional.empty() : Optional.of(mcp23017.get(0));
+    }
+
+    public void flush() {
+        for (OutputBank bank : banks) bank.flush();
+    }
+
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        gpiomem.ifPresent(bank -> json.put("gpiomem", bank.toJson()));
+        if (!mcp23017.isEmpty()) {
+            JSONArray expanders = new JSONArray();
+            mcp23017.forEach(bank -> expanders.put(bank.toJson()));
+            json.put("mcp23017", expanders);
+        }
+        return json;
+    }
+}
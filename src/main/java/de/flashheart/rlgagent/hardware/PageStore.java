@@ -0,0 +1,207 @@
+package de.flashheart.rlgagent.hardware;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * The pages of the LCD. Pages and snapshots are never changed. Every change builds a new snapshot and publishes it
+ * with a compare and set, so the writers (MQTT callback, Quartz jobs) never block the display thread and the display
+ * thread always renders a consistent page.
+ * <p>
+ * Pages are found by their key, the lower case handle, which is interned. So "Page0" and "page0" are the same page
+ * and keys can be compared with ==.
+ */
+public class PageStore {
+    public static final String PAGE0 = "page0";
+    private final int rows;
+    private final AtomicReference<Snapshot> current;
+
+    public PageStore(int rows) {
+        this.rows = rows;
+        current = new AtomicReference<>(new Snapshot(new Page[]{new Page(PAGE0, rows)}, 0L));
+    }
+
+    /**
+     * @return the interned key for a page handle
+     */
+    public static String key(String handle) {
+        return handle.toLowerCase(Locale.ROOT).intern();
+    }
+
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * removes all pages but an empty page0. The page cycle starts from the beginning.
+     */
+    public void reset() {
+        update(snapshot -> new Snapshot(new Page[]{new Page(PAGE0, rows)}, snapshot.generation + 1));
+    }
+
+    /**
+     * @return false if the page already exists
+     */
+    public boolean add(String handle) {
+        final String key = key(handle);
+        return update(snapshot -> snapshot.index_of(key) >= 0 ? snapshot : snapshot.with(new Page(handle, rows))) != null;
+    }
+
+    /**
+     * removes a page and starts the page cycle from the beginning. page0 stays.
+     *
+     * @return false if there was no such page
+     */
+    public boolean remove(String handle) {
+        final String key = key(handle);
+        if (key == PAGE0) return false;
+        return update(snapshot -> snapshot.without(key)) != null;
+    }
+
+    /**
+     * replaces a line. The page is created if necessary.
+     *
+     * @param line 0..rows-1
+     */
+    public void set_line(String handle, int line, LineTemplate template) {
+        final String key = key(handle);
+        update(snapshot -> {
+            final int index = snapshot.index_of(key);
+            final Page page = index < 0 ? new Page(handle, rows) : snapshot.pages[index];
+            return index < 0 ? snapshot.with(page.with(line, template)) : snapshot.replace(index, page.with(line, template));
+        });
+    }
+
+    /**
+     * @return the new snapshot. null if nothing has changed.
+     */
+    private Snapshot update(UnaryOperator<Snapshot> change) {
+        while (true) {
+            final Snapshot snapshot = current.get();
+            final Snapshot changed = change.apply(snapshot);
+            if (changed == snapshot) return null;
+            if (current.compareAndSet(snapshot, changed)) return changed;
+        }
+    }
+
+    /**
+     * All pages in the order of the page cycle at one moment.
+     */
+    public static final class Snapshot {
+        private final Page[] pages;
+        private final Map<String, Integer> index;
+        // changes when the page cycle has to start over
+        private final long generation;
+
+        private Snapshot(Page[] pages, long generation) {
+            this.pages = pages;
+            this.generation = generation;
+            HashMap<String, Integer> index = new HashMap<>();
+            for (int i = 0; i < pages.length; i++) index.put(pages[i].key, i);
+            this.index = index;
+        }
+
+        public int size() {
+            return pages.length;
+        }
+
+        public Page get(int index) {
+            return pages[index];
+        }
+
+        /**
+         * @param key see {@link PageStore#key(String)}
+         * @return -1 if there is no such page
+         */
+        public int index_of(String key) {
+            Integer i = index.get(key);
+            return i == null ? -1 : i;
+        }
+
+        public boolean contains(String handle) {
+            return index.containsKey(key(handle));
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        private Snapshot with(Page page) {
+            Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+            grown[pages.length] = page;
+            return new Snapshot(grown, generation);
+        }
+
+        private Snapshot replace(int i, Page page) {
+            Page[] copy = pages.clone();
+            copy[i] = page;
+            return new Snapshot(copy, generation);
+        }
+
+        private Snapshot without(String key) {
+            final int i = index_of(key);
+            if (i < 0) return this;
+            Page[] shrunk = new Page[pages.length - 1];
+            System.arraycopy(pages, 0, shrunk, 0, i);
+            System.arraycopy(pages, i + 1, shrunk, i, pages.length - i - 1);
+            return new Snapshot(shrunk, generation + 1);
+        }
+    }
+
+    /**
+     * The compiled lines of a page. A new line makes a new page.
+     */
+    public static final class Page {
+        private final String name;
+        private final String key;
+        private final LineTemplate[] lines;
+        private final BitSet slots; // the variables used on this page
+
+        private Page(String name, int rows) {
+            this(name, filled(rows));
+        }
+
+        private Page(String name, LineTemplate[] lines) {
+            this.name = name;
+            this.key = key(name);
+            this.lines = lines;
+            this.slots = new BitSet();
+            for (LineTemplate line : lines) line.collect_slots(slots);
+        }
+
+        private static LineTemplate[] filled(int rows) {
+            LineTemplate[] lines = new LineTemplate[rows];
+            Arrays.fill(lines, LineTemplate.EMPTY);
+            return lines;
+        }
+
+        private Page with(int line, LineTemplate template) {
+            LineTemplate[] copy = lines.clone();
+            copy[line] = template;
+            return new Page(name, copy);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * writes the line with the current values of its variables into the row
+         */
+        public void render(int num, VariableTable variables, char[] row) {
+            lines[num].render(variables, row);
+        }
+
+        /**
+         * @return the slots of all variables used on this page. Must not be changed.
+         */
+        public BitSet slots() {
+            return slots;
+        }
+    }
+}
@@ -1,141 +1,341 @@
 package de.flashheart.rlgagent.hardware;
 
 import de.flashheart.rlgagent.misc.Configs;
+import de.flashheart.rlgagent.misc.PayloadDecoder;
 import lombok.extern.log4j.Log4j2;
 import org.json.JSONObject;
 
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Plays the signal schemes on the pins. There is no fixed polling rate. The handler thread only wakes up when the
+ * next state change (edge) of any active scheme is due, or when a new command arrives. If no scheme is active, the
+ * thread sleeps until parse_incoming is called again.
+ * <p>
+ * There are no locks. Command threads publish new schemes per pin (see {@link PinScheme}) and unpark the handler
+ * thread, which is the only one to touch the pins. So a slow GPIO write never holds up command parsing and a burst
+ * of commands never delays an edge.
+ * <p>
+ * Every pin gets a dense id when it is added. Pins are kept in an array by this id. Targets in a command (a pin name,
+ * led_all, sir_all or a group from the config) are resolved into a bitmask of pin ids with one lookup.
+ */
 @Log4j2
 public class PinHandler implements Runnable {
-    public static final int PERIOD = 25;
+    public static final int MAX_PINS = 64;
+    public static final String LED_ALL = "led_all";
+    public static final String SIR_ALL = "sir_all";
     private final Configs configs;
-    ScheduledExecutorService executor;
-    ReentrantLock lock;
+    private final SchemeLibrary scheme_library;
+    private final Thread thread;
+    private final AtomicBoolean changed;
+    // active schemes ordered by their next edge. PinHandler thread only.
+    private final PriorityQueue<Track> edges;
+    private final SignalClock clock;
+    private final SignalClock.Loop loop;
+    private final OutputBanks output_banks;
 
-    // the registry has a Quartet with the Pin, the repeat number, the active scheme and the backup scheme
-    HashMap<String, PinScheme> pin_registry;
-    //List<String> keys = Arrays.asList("wht", "red", "ylw", "grn", "blu", "sir1", "sir2", "sir3", "sir4", "buzzer");
-    // contains a repeat number of every Linkes List available
+    // pins by id. replaced as a whole when a pin is added (only during startup)
+    private volatile PinScheme[] pins;
+    // pin names and group names to bitmasks of pin ids
+    private volatile Map<String, Long> selectors;
 
-    public PinHandler(Configs configs) {
+    public PinHandler(Configs configs, SignalClock clock, OutputBanks output_banks) {
         this.configs = configs;
-        pin_registry = new HashMap<>();
-        lock = new ReentrantLock();
-        executor = Executors.newScheduledThreadPool(1);
-        executor.scheduleAtFixedRate(this, 0, PERIOD, TimeUnit.MILLISECONDS);
+        this.output_banks = output_banks;
+        this.clock = clock;
+        this.loop = clock.loop("pins", SignalClock.SIGNAL_SPIN);
+        this.scheme_library = new SchemeLibrary(configs);
+        pins = new PinScheme[0];
+        selectors = Collections.emptyMap();
+        changed = new AtomicBoolean(false);
+        edges = new PriorityQueue<>(Comparator.comparingLong(Track::getNext_edge));
+        thread = new Thread(this, "PinHandler");
+        thread.start();
     }
 
-    public void add(MyPin myPin) {
-        lock.lock();
-        try {
-            pin_registry.put(myPin.getName(), new PinScheme(myPin));
-        } finally {
-            lock.unlock();
+    /**
+     * adds a pin and assigns the next free id to it
+     *
+     * @param myPin to be added
+     */
+    public synchronized void add(MyPin myPin) {
+        if (pins.length >= MAX_PINS) throw new IllegalStateException("no more than " + MAX_PINS + " pins supported");
+        PinScheme[] grown = Arrays.copyOf(pins, pins.length + 1);
+        grown[pins.length] = new PinScheme(pins.length, myPin);
+        pins = grown;
+        selectors = build_selectors(grown);
+    }
+
+    /**
+     * precomputes the masks for all pin names, the two default groups and the groups defined in the config file (e.g.
+     * <code>pin_groups=team_red:red,sir1 corners:wht,blu</code>). Unknown pins in a group are ignored. A group needs
+     * at least 2 known pins and a mask of its own. Otherwise it would have the same mask as a pin, led_all, sir_all or
+     * an earlier group and couldn't be told apart in a {@link SignalCommand}.
+     */
+    private Map<String, Long> build_selectors(PinScheme[] pins) {
+        HashMap<String, Long> map = new HashMap<>();
+        for (PinScheme pinScheme : pins) map.put(pinScheme.myPin.getName(), 1L << pinScheme.getId());
+        map.put(LED_ALL, mask_of(map, Arrays.asList(Configs.ALL_LEDS)));
+        map.put(SIR_ALL, mask_of(map, Arrays.asList(Configs.ALL_SIRENS)));
+        // group name by mask
+        HashMap<Long, String> taken = new HashMap<>();
+        taken.put(map.get(LED_ALL), LED_ALL);
+        taken.put(map.get(SIR_ALL), SIR_ALL);
+        for (String group : configs.get(Configs.PIN_GROUPS, "").trim().split("\\s+")) {
+            int colon = group.indexOf(':');
+            if (colon < 1) continue;
+            final long mask = mask_of(map, Arrays.asList(group.substring(colon + 1).split(",")));
+            if (Long.bitCount(mask) < 2) {
+                log.warn("pin group {} ignored - it needs at least 2 known pins", group.substring(0, colon));
+                continue;
+            }
+            if (taken.containsKey(mask)) {
+                log.warn("pin group {} ignored - it has the same pins as {}", group.substring(0, colon), taken.get(mask));
+                continue;
+            }
+            taken.put(mask, group.substring(0, colon));
+            map.put(group.substring(0, colon), mask);
         }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private long mask_of(Map<String, Long> map, List<String> names) {
+        long mask = 0L;
+        for (String name : names) mask |= map.getOrDefault(name.trim(), 0L);
+        return mask;
+    }
+
+    /**
+     * @param target a pin name, led_all, sir_all or a group name
+     * @return the bitmask of the pin ids. 0 if unknown.
+     */
+    public long resolve(String target) {
+        Long mask = selectors.get(target);
+        return mask == null ? 0L : mask;
+    }
+
+    /**
+     * @return the bitmask of all pins
+     */
+    public long getMask() {
+        final int size = pins.length;
+        return size == MAX_PINS ? -1L : (1L << size) - 1;
+    }
+
+    /**
+     * @return pin names ordered by their id
+     */
+    public List<String> getPin_names() {
+        ArrayList<String> names = new ArrayList<>();
+        for (PinScheme pinScheme : pins) names.add(pinScheme.myPin.getName());
+        return names;
     }
 
+    /**
+     * @param incoming signal command
+     * @see #play(SignalCommand)
+     */
     public void parse_incoming(final JSONObject incoming) {
+        play(PayloadDecoder.signals(incoming, this));
+    }
 
-        lock.lock();
+    /**
+     * Groups (led_all, sir_all and the groups from the config) are processed before single pins. So a single pin
+     * always wins, e.g. <code>{"led_all": "off", "blu": "fast"}</code>
+     *
+     * @param command decoded signal command
+     */
+    public void play(final SignalCommand command) {
+        final long now = clock.now();
+        final PinScheme[] pins = this.pins;
 
         try {
-            // Preprocess sir_all and led_all device selectors
-            // off is processed first, and then removed from the message
-            // other schemes are duplicated to their devices names.
-            if (incoming.has("sir_all")) {
-                if (incoming.optString("sir_all").equalsIgnoreCase("off")) {
-                    Arrays.asList(Configs.ALL_SIRENS).forEach(this::off);
-                } else {
-                    Arrays.asList(Configs.ALL_SIRENS).forEach(key -> {
-                        incoming.remove(key);
-                        incoming.put(key, incoming.get("sir_all"));
-                    });
+            for (int pass = 0; pass < 2; pass++) {
+                for (long mask : command.getTargets()) {
+                    if ((Long.bitCount(mask) > 1) == (pass == 1)) continue; // groups first, single pins second
+                    log.trace("{} found", Long.toHexString(mask));
+
+                    final CompiledScheme scheme = command.get(mask);
+                    for (long m = mask; m != 0L; m &= m - 1) {
+                        if (scheme == null) pins[Long.numberOfTrailingZeros(m)].publish_off();
+                        else pins[Long.numberOfTrailingZeros(m)].publish(scheme, now);
+                    }
                 }
             }
-            incoming.remove("sir_all");
-
-            if (incoming.has("led_all")) {
-                if (incoming.optString("led_all").equalsIgnoreCase("off")) {
-                    Arrays.asList(Configs.ALL_LEDS).forEach(this::off);
-                } else {
-                    Arrays.asList(Configs.ALL_LEDS).forEach(key -> {
-                        incoming.remove(key);
-                        incoming.put(key, incoming.get("led_all"));
-                    });
-                }
+        } finally {
+            signal();
+        }
+    }
+
+    /**
+     * starts a multi pin timeline. The lanes are given as pin names (or groups) with either a scheme array or a macro
+     * name. All lanes are compiled into one {@link Choreography} and switched together.
+     * <pre>
+     * {"repeat": -1, "timeline": {"wht": "netstatus", "red": [-250, 250, -500]}}
+     * </pre>
+     *
+     * @param incoming the choreography command
+     */
+    public void parse_choreography(final JSONObject incoming) {
+        play(decode_choreography(incoming));
+    }
+
+    /**
+     * compiles a choreography command, so it can be played later, maybe many times
+     *
+     * @see #parse_choreography(JSONObject)
+     */
+    public ChoreographyCommand decode_choreography(final JSONObject incoming) {
+        final PinScheme[] pins = this.pins;
+        final JSONObject timeline = incoming.getJSONObject("timeline");
+        // later entries win, if a pin is mentioned twice
+        final LinkedHashMap<PinScheme, CompiledScheme> lanes = new LinkedHashMap<>();
+
+        timeline.keySet().forEach(key -> {
+            final long mask = resolve(key);
+            if (mask == 0L) {
+                log.warn("unknown pin {} in choreography", key);
+                return;
+            }
+            CompiledScheme scheme = scheme_library.get(timeline.optString(key, null));
+            if (scheme == null) scheme = CompiledScheme.of(1, timeline.getJSONArray(key));
+            for (long m = mask; m != 0L; m &= m - 1) {
+                PinScheme pinScheme = pins[Long.numberOfTrailingZeros(m)];
+                lanes.remove(pinScheme);
+                lanes.put(pinScheme, scheme);
             }
-            incoming.remove("led_all");
+        });
 
-            incoming.keySet().forEach(key -> {
-                log.trace("{} found", key);
+        Choreography choreography = Choreography.of(incoming.getInt("repeat"), new ArrayList<>(lanes.values()));
+        log.trace("choreography {}", choreography);
+        return new ChoreographyCommand(choreography, lanes.keySet().toArray(new PinScheme[0]));
+    }
 
-                if (incoming.get(key).toString().equalsIgnoreCase("off")) {
-                    off(key);
-                    return;
-                }
+    /**
+     * starts a compiled choreography now. Never blocks.
+     */
+    public void play(final ChoreographyCommand command) {
+        Ensemble ensemble = new Ensemble(command.getChoreography(), command.getLanes(), clock.now());
+        for (PinScheme pinScheme : command.getLanes()) pinScheme.publish(ensemble);
+        signal();
+    }
 
-                JSONObject json_scheme;
-                if (configs.getScheme_macros().keySet().contains(incoming.optString(key, "NOT_A_STRING"))) {
-                    // replace scheme with macro
-                    json_scheme = configs.getScheme_macros().getJSONObject(incoming.getString(key));
-                } else {
-                    json_scheme = incoming.getJSONObject(key);
-                }
+    /**
+     * tells the handler thread that there are new schemes to pick up
+     */
+    private void signal() {
+        changed.set(true);
+        LockSupport.unpark(thread);
+    }
 
-                int repeat = json_scheme.getInt("repeat") < 0 ? Integer.MAX_VALUE : json_scheme.getInt("repeat") - 1;
-                pin_registry.get(key).init(repeat, json_scheme.getJSONArray("scheme"));
+    /**
+     * takes over all newly published schemes. PinHandler thread only.
+     */
+    private void apply_changes() {
+        for (PinScheme pinScheme : pins) {
+            if (!pinScheme.has_changed()) continue;
+            edges.remove(pinScheme);
+            pinScheme.apply();
+            if (pinScheme.isActive()) edges.add(pinScheme);
 
-            });
-        } finally {
-            lock.unlock();
+            Ensemble ensemble = pinScheme.getEnsemble();
+            if (ensemble == null) continue;
+            if (ensemble.isStarted()) ensemble.sync(pinScheme); // joins late
+            else {
+                ensemble.start();
+                if (ensemble.isActive()) edges.add(ensemble);
+            }
         }
     }
 
 
     @Override
     public void run() {
-        lock.lock();
-        try {
-            pin_registry.values().forEach(PinScheme::next);
-        } catch (IndexOutOfBoundsException indexOutOfBoundsException) {
-            // empty list, nothing to do
-        } finally {
-            lock.unlock();
+        while (!thread.isInterrupted()) {
+            if (changed.getAndSet(false)) {
+                apply_changes();
+                output_banks.flush();
+            }
+            Track head = edges.peek();
+            if (head == null) { // nothing to do until the next command
+                loop.park();
+                continue;
+            }
+            // returns early for a new command or a spurious wakeup. we check again anyway.
+            if (!loop.park_until(head.getNext_edge())) continue;
+            // everything that is due on this tick is staged first and then written together
+            final long tick = head.getNext_edge();
+            while ((head = edges.peek()) != null && head.getNext_edge() <= tick) {
+                edges.poll();
+                head.advance();
+                if (head.isActive()) edges.add(head);
+            }
+            output_banks.flush();
         }
     }
 
-    public void off(String key) {
-        lock.lock();
-        try {
-            pin_registry.get(key).clear();
-        } finally {
-            lock.unlock();
-        }
+    /**
+     * @param target a pin name, led_all, sir_all or a group name
+     */
+    public void off(String target) {
+        off(resolve(target));
     }
 
     public void leds_off() {
-        lock.lock();
-        try {
-            Arrays.asList(Configs.ALL_LEDS).forEach(this::off);
-            //pin_registry.values().forEach(PinScheme::clear);
-        } finally {
-            lock.unlock();
-        }
+        off(resolve(LED_ALL));
     }
 
     public void off() {
-        lock.lock();
-        try {
-            pin_registry.values().forEach(PinScheme::clear);
-        } finally {
-            lock.unlock();
+        for (PinScheme pinScheme : pins) pinScheme.publish_off();
+        signal();
+    }
+
+    private void off(long mask) {
+        final PinScheme[] pins = this.pins;
+        for (long m = mask; m != 0L; m &= m - 1) pins[Long.numberOfTrailingZeros(m)].publish_off();
+        signal();
+    }
+
+    /**
+     * stops the handler thread and the watcher of the scheme library. The pins stay as they are. Call {@link #off()}
+     * first and give it a moment, if they should be dark.
+     */
+    public void shutdown() {
+        thread.interrupt();
+        scheme_library.close();
+    }
+
+    public OutputBanks getOutput_banks() {
+        return output_banks;
+    }
+
+    public SchemeLibrary getScheme_library() {
+        return scheme_library;
+    }
+
+    /**
+     * @return the number of signal commands per pin, that were replaced by a newer one before they could be applied.
+     * Only pins with at least one.
+     */
+    public JSONObject toJson() {
+        JSONObject per_pin = new JSONObject();
+        long total = 0L;
+        for (PinScheme pinScheme : pins) {
+            final long coalesced = pinScheme.getCoalesced();
+            if (coalesced == 0L) continue;
+            per_pin.put(pinScheme.myPin.getName(), coalesced);
+            total += coalesced;
         }
+        return new JSONObject().put("coalesced", total).put("coalesced_per_pin", per_pin);
     }
 
+    /**
+     * @return how late the edges were switched compared to their schedule
+     */
+    public JitterHistogram getJitter() {
+        return loop.getJitter();
+    }
 
 }
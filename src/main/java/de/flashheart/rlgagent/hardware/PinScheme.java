@@ -2,64 +2,171 @@ package de.flashheart.rlgagent.hardware;
 
 import lombok.ToString;
 import lombok.extern.log4j.Log4j2;
-import org.json.JSONArray;
 
-import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * The playback state of one pin. Command threads only ever publish a new immutable {@link Activation} via
+ * {@link #publish(CompiledScheme, long)}, {@link #publish(Ensemble)} or {@link #publish_off()}. Everything else in
+ * here belongs to the PinHandler thread, which picks up the activation, keeps the cursor and is the only one to touch
+ * the pin.
+ * <p>
+ * The activations go through a mailbox with a single slot. Last writer wins: an activation that has not been picked
+ * up yet is replaced by the newer one and counted as coalesced. So a burst of commands for the same pin is applied
+ * only once.
+ */
 @ToString
 @Log4j2
-public class PinScheme {
+public class PinScheme extends Track {
+    private static final Activation OFF = new Activation(null, null, 0L);
+
+    private final int id; // dense index in the PinHandler
     MyPin myPin;
-    int repeat;
-    int pointer;
-    LinkedList<Integer> scheme; // what the pin is currently working on
+    private final AtomicReference<Activation> mailbox; // null when there is nothing new
+    private final AtomicLong coalesced;
+
+    // owned by the PinHandler thread
+    CompiledScheme scheme; // what the pin is currently working on, null when idle
+    int cursor; // the segment we are in
+    int runs; // runs left, including the current one
+    private Ensemble ensemble; // when the pin is part of a choreography
 
-    public PinScheme(MyPin myPin) {
+    public PinScheme(int id, MyPin myPin) {
+        this.id = id;
         this.myPin = myPin;
-        repeat = 0;
-        pointer = 0;
-        scheme = new LinkedList<>();
+        mailbox = new AtomicReference<>();
+        coalesced = new AtomicLong();
+        clear();
+    }
+
+    /**
+     * requests a new scheme for this pin. Never blocks. The scheme starts at <code>now</code>, even if the PinHandler
+     * thread picks it up a little later.
+     */
+    void publish(CompiledScheme scheme, long now) {
+        post(new Activation(scheme, null, now));
+    }
+
+    /**
+     * hands this pin over to a choreography. Never blocks.
+     */
+    void publish(Ensemble ensemble) {
+        post(new Activation(null, ensemble, 0L));
+    }
+
+    void publish_off() {
+        post(OFF);
+    }
+
+    private void post(Activation activation) {
+        if (mailbox.getAndSet(activation) != null) coalesced.incrementAndGet();
+    }
+
+    /**
+     * @return how many activations have been replaced before the PinHandler thread picked them up
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    boolean has_changed() {
+        return mailbox.get() != null;
     }
 
-    void clear() {
+    /**
+     * takes over the latest published activation. PinHandler thread only.
+     */
+    void apply() {
+        final Activation applied = mailbox.getAndSet(null);
+        if (applied == null) return;
+        if (applied.ensemble != null) {
+            stop();
+            ensemble = applied.ensemble; // from now on, the ensemble is in charge of the pin
+        } else if (applied.scheme == null) clear();
+        else init(applied.scheme, applied.start);
+    }
+
+    Ensemble getEnsemble() {
+        return ensemble;
+    }
+
+    /**
+     * the ensemble of this pin has finished
+     */
+    void leave() {
+        clear();
+    }
+
+    private void stop() {
+        scheme = null;
+        ensemble = null;
+        cursor = 0;
+        runs = 0;
+        next_edge = IDLE;
+    }
+
+    private void clear() {
         log.trace("clearing scheme for pin {}", myPin.getName());
-        scheme.clear();
-        repeat = 0;
-        pointer = 0;
+        stop();
         myPin.setState(false);
     }
 
     /**
-     * creates a scheme but chops the time value into pieces of 25ms (PERIOD)
+     * starts a compiled scheme from the beginning. The scheme itself is shared and never changed here, we only keep
+     * our own cursor. The first segment is applied right away.
      *
-     * @param repeat
-     * @param json_scheme
+     * @param scheme to be played
+     * @param start  {@link SignalClock#now()} of the start
      */
-    void init(int repeat, JSONArray json_scheme) {
+    private void init(CompiledScheme scheme, long start) {
         clear();
-        this.repeat = repeat;
-        json_scheme.forEach(o -> {
-            int value = Integer.parseInt(o.toString());
-            int multiplier = Math.abs(value / PinHandler.PERIOD);
-            int sign = value >= 0 ? 1 : -1;
+        if (scheme.isEmpty()) return;
+        this.scheme = scheme;
+        this.runs = Math.max(1, scheme.getRepeat());
+        myPin.setState(scheme.isOn(0));
+        next_edge = start + TimeUnit.MILLISECONDS.toNanos(scheme.duration(0));
+    }
 
-            // add <multiplier>-times the value to the list
-            for (int i = 0; i < multiplier; i++)
-                scheme.add(PinHandler.PERIOD * sign);
-        });
+    /**
+     * called when next_edge has been reached. Moves on to the next segment and calculates the following edge. The
+     * edges are calculated from the previous edge, not from the time we actually woke up, so a late wake up does not
+     * add up over time.
+     */
+    @Override
+    void advance() {
+        if (scheme == null) return;
+
+        cursor++;
+        if (cursor >= scheme.length()) { // its over
+            cursor = 0;
+            if (runs != CompiledScheme.FOREVER && --runs <= 0) {
+                clear();
+                return;
+            }
+            log.trace("end of scheme - {} runs left for pin {}", runs, myPin.getName());
+        }
+        myPin.setState(scheme.isOn(cursor));
+        next_edge += TimeUnit.MILLISECONDS.toNanos(scheme.duration(cursor));
     }
 
-    void next() {
-        if (scheme.isEmpty()) return;
+    /**
+     * immutable snapshot of a request. Sending the same scheme twice restarts it.
+     */
+    private static final class Activation {
+        private final CompiledScheme scheme; // null means off, unless there is an ensemble
+        private final Ensemble ensemble;
+        private final long start;
 
-        myPin.setState(scheme.get(pointer) >= 0);
-        pointer++;
-        if (pointer >= scheme.size()) { // its over
-            pointer = 0;
-            if (repeat > 0) { // we need to repeat at least once more
-                log.trace("list is empty - refilling for repeat {} ", repeat);
-                repeat--;
-            } else clear();
+        private Activation(CompiledScheme scheme, Ensemble ensemble, long start) {
+            this.scheme = scheme;
+            this.ensemble = ensemble;
+            this.start = start;
         }
     }
 }
@@ -0,0 +1,107 @@
+package de.flashheart.rlgagent.hardware;
+
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the elapsed time of a timer on a row of pins. The more time has passed, the more pins are flashing and the
+ * faster they flash. With the 5 LEDs (led_all) there are 15 steps:
+ * <pre>
+ * wht normal, fast, very_fast
+ * wht red normal, fast, very_fast
+ * ...
+ * wht red ylw grn blu fast, very_fast, mega_fast
+ * </pre>
+ * The pins are taken in the order of their ids. The choreographies for all steps and the ratios where a step begins
+ * are compiled once, when the bar is created. The bar subscribes to these ratios (see {@link TimerEngine}), so it is
+ * only called when the next step is due. Then the step is only handed over to the {@link PinHandler}.
+ * <p>
+ * When the timer runs out or is cleared, the pins flash very_long once.
+ */
+@Log4j2
+public class ProgressBar implements TimerEngine.ThresholdListener {
+    private static final String[] SPEEDS = new String[]{"normal", "fast", "very_fast"};
+    private static final String[] FINAL_SPEEDS = new String[]{"fast", "very_fast", "mega_fast"};
+
+    private final PinHandler pinHandler;
+    private final String target;
+    private final long mask;
+    private final ChoreographyCommand[] steps;
+    private final SignalCommand goodbye;
+    private final double[] thresholds;
+    private volatile int shown;
+
+    /**
+     * @param pinHandler to play the steps
+     * @param target     a pin name, led_all, sir_all or a group name
+     */
+    public ProgressBar(PinHandler pinHandler, String target) {
+        this.pinHandler = pinHandler;
+        this.target = target;
+        this.mask = pinHandler.resolve(target);
+        if (mask == 0L) throw new IllegalArgumentException("unknown target " + target);
+
+        List<String> pins = new ArrayList<>();
+        List<String> names = pinHandler.getPin_names();
+        for (long m = mask; m != 0L; m &= m - 1) pins.add(names.get(Long.numberOfTrailingZeros(m)));
+
+        List<ChoreographyCommand> steps = new ArrayList<>();
+        for (int lit = 1; lit < pins.size(); lit++)
+            for (String speed : SPEEDS) steps.add(pinHandler.decode_choreography(step(pins.subList(0, lit), speed)));
+        for (String speed : FINAL_SPEEDS) steps.add(pinHandler.decode_choreography(step(pins, speed)));
+        this.steps = steps.toArray(new ChoreographyCommand[0]);
+        goodbye = new SignalCommand();
+        goodbye.put(mask, pinHandler.getScheme_library().get("very_long"));
+
+        // step k begins when k/n of the time has passed
+        thresholds = new double[this.steps.length - 1];
+        for (int k = 1; k < this.steps.length; k++) thresholds[k - 1] = (double) k / this.steps.length;
+        shown = -1;
+    }
+
+    /**
+     * all pins of a step flash in phase
+     */
+    private JSONObject step(List<String> pins, String speed) {
+        JSONObject timeline = new JSONObject();
+        pins.forEach(pin -> timeline.put(pin, speed));
+        return new JSONObject().put("repeat", -1).put("timeline", timeline);
+    }
+
+    public double[] getThresholds() {
+        return thresholds;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the pins used by this bar
+     */
+    public long getMask() {
+        return mask;
+    }
+
+    @Override
+    public void crossed(int crossed) {
+        if (crossed == shown) return;
+        shown = crossed;
+        log.trace("progress on {} is now step {}", target, crossed);
+        pinHandler.play(steps[crossed]);
+    }
+
+    @Override
+    public void finished() {
+        shown = -1;
+        pinHandler.play(goodbye);
+    }
+
+    @Override
+    public void cleared() {
+        finished(); // just like a timer that ran out
+    }
+}
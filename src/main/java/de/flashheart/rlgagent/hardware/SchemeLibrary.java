@@ -0,0 +1,123 @@
+package de.flashheart.rlgagent.hardware;
+
+import de.flashheart.rlgagent.misc.Configs;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The scheme macros ("fast", "netstatus" etc.) compiled once into {@link CompiledScheme}s. Resolving a macro is a
+ * single hash lookup.
+ * <p>
+ * The built-in macros come with the jar. A file with the same name in the workspace can override or add macros. It is
+ * watched and reloaded when changed. Readers always see a complete, immutable map, which is swapped in one go.
+ */
+@Log4j2
+public class SchemeLibrary implements Runnable {
+    private final JSONObject builtin;
+    private final File override;
+    private volatile Map<String, CompiledScheme> macros;
+    private WatchService watchService;
+
+    public SchemeLibrary(Configs configs) {
+        this.builtin = configs.getScheme_macros();
+        this.override = new File(configs.getWORKSPACE(), Configs.SCHEME_MACROS_FILE);
+        reload();
+        try {
+            // registered right away, so we don't miss a change while the thread is starting
+            watchService = FileSystems.getDefault().newWatchService();
+            override.getParentFile().toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            Thread watcher = new Thread(this, "SchemeLibrary");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            log.warn("scheme macros will not be reloaded - {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @param name of the macro. may be null.
+     * @return the compiled macro or null if there is no such macro
+     */
+    public CompiledScheme get(String name) {
+        return name == null ? null : macros.get(name);
+    }
+
+    /**
+     * @return all macros by name
+     */
+    public Map<String, CompiledScheme> getMacros() {
+        return macros;
+    }
+
+    /**
+     * stops watching the override file. The macros we have stay.
+     */
+    public void close() {
+        if (watchService == null) return;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+        }
+    }
+
+    /**
+     * the overrides are only published when the whole file could be compiled. Otherwise we keep the macros we have.
+     */
+    private void reload() {
+        HashMap<String, CompiledScheme> compiled = new HashMap<>();
+        compile(builtin, compiled);
+        if (override.exists()) {
+            try {
+                HashMap<String, CompiledScheme> overrides = new HashMap<>();
+                compile(new JSONObject(FileUtils.readFileToString(override, StandardCharsets.UTF_8)), overrides);
+                compiled.putAll(overrides);
+                log.info("scheme macros loaded with overrides from {}", override);
+            } catch (Exception e) {
+                log.warn("could not read {} - {}", override, e.getMessage());
+                if (macros != null) return; // keep on working with what we have
+            }
+        }
+        macros = Collections.unmodifiableMap(compiled);
+    }
+
+    private void compile(JSONObject json, Map<String, CompiledScheme> compiled) {
+        json.keySet().forEach(name -> {
+            JSONObject json_scheme = json.getJSONObject(name);
+            compiled.put(name, CompiledScheme.of(json_scheme.getInt("repeat"), json_scheme.getJSONArray("scheme")));
+        });
+    }
+
+    /**
+     * watches the workspace for changes on the override file
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                boolean affected = key.pollEvents().stream()
+                        .anyMatch(event -> event.kind() == StandardWatchEventKinds.OVERFLOW || override.getName().equals(String.valueOf(event.context())));
+                if (affected) reload();
+                if (!key.reset()) break;
+            }
+        } catch (ClosedWatchServiceException closed) {
+            log.debug("no longer watching {}", override);
+        } catch (InterruptedException ie) {
+            log.error(ie);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The time base for everything that has to happen on time (signal edges, display cycles, timers). It is based on
+ * System.nanoTime(), so it is monotonic and not affected when NTP corrects the wall clock of the Pi.
+ * <p>
+ * Every periodic thread gets its own {@link Loop} which parks until absolute deadlines. Deadlines are always
+ * calculated from the previous deadline and never from the time we woke up, so the error does not add up. A loop for
+ * the signal edges may also learn how much the OS usually oversleeps, park that much shorter and yield through the last
+ * stretch. It never yields for longer than {@link #SIGNAL_SPIN}.
+ */
+public class SignalClock {
+    // covers how much parkNanos usually oversleeps, without burning the CPU for long
+    public static final long SIGNAL_SPIN = TimeUnit.MICROSECONDS.toNanos(200);
+    private final long origin;
+    private final Map<String, Loop> loops;
+
+    public SignalClock() {
+        origin = System.nanoTime();
+        loops = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * @return monotonic time in ns. Only useful to compare with other values from this clock.
+     */
+    public long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return monotonic ms since this clock was created
+     */
+    public long millis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+    }
+
+    /**
+     * @param name for the status report
+     * @return a new loop, which only parks
+     */
+    public Loop loop(String name) {
+        return loop(name, 0L);
+    }
+
+    /**
+     * @param name     for the status report
+     * @param max_spin how long the loop may yield before a deadline at most. in ns.
+     * @return a new loop
+     */
+    public Loop loop(String name, long max_spin) {
+        Loop loop = new Loop(max_spin);
+        loops.put(name, loop);
+        return loop;
+    }
+
+    /**
+     * @return jitter statistics of all loops
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        loops.forEach((name, loop) -> json.put(name, loop.toJson()));
+        return json;
+    }
+
+    /**
+     * The timing of one thread. Not thread safe, except for reading the statistics.
+     */
+    public static class Loop {
+        private final long max_lead; // we never spin longer than this
+        private final JitterHistogram jitter;
+        private long lead; // moving average of how much parkNanos oversleeps
+        // sum of all lateness in ns. Only a metric. The deadlines are absolute, so the lateness doesn't carry over.
+        private volatile long total_lateness;
+
+        private Loop(long max_lead) {
+            this.max_lead = max_lead;
+            jitter = new JitterHistogram();
+            lead = 0L;
+            total_lateness = 0L;
+        }
+
+        /**
+         * parks the calling thread until the deadline. Returns early (false) when the thread is unparked by someone
+         * else, so the caller can check for new work.
+         *
+         * @param deadline in terms of {@link SignalClock#now()}
+         * @return true when the deadline has been reached. The lateness is recorded.
+         */
+        public boolean park_until(long deadline) {
+            long now = System.nanoTime();
+            long remaining = deadline - now;
+            if (remaining > lead) {
+                long planned = now + remaining - lead;
+                LockSupport.parkNanos(this, remaining - lead);
+                now = System.nanoTime();
+                long overslept = now - planned;
+                if (overslept >= 0) lead = Math.min(max_lead, lead + (overslept - lead) / 8);
+                else if (deadline - now > lead) return false; // unparked early
+            }
+            while (now < deadline) { // the last stretch
+                Thread.yield();
+                now = System.nanoTime();
+            }
+            record(now - deadline);
+            return true;
+        }
+
+        /**
+         * parks until someone unparks this thread. For loops that have nothing to do.
+         */
+        public void park() {
+            LockSupport.park(this);
+        }
+
+        private void record(long lateness) {
+            jitter.record(lateness);
+            total_lateness += lateness;
+        }
+
+        public JitterHistogram getJitter() {
+            return jitter;
+        }
+
+        public JSONObject toJson() {
+            return jitter.toJson()
+                    .put("lead_us", TimeUnit.NANOSECONDS.toMicros(lead))
+                    .put("lateness_ms", TimeUnit.NANOSECONDS.toMillis(total_lateness));
+        }
+    }
+}
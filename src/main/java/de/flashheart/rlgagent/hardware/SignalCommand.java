@@ -0,0 +1,99 @@
+package de.flashheart.rlgagent.hardware;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A decoded visual or acoustic command: the compiled scheme for every known target (a pin or a group). The targets are
+ * kept as bitmasks of pin ids (see {@link PinHandler#resolve(String)}), so it doesn't matter whether a command came by
+ * name or by pin id. A target without a scheme is switched off. Unknown targets have already been dropped.
+ * <p>
+ * A visual command may ask for a progress bar instead, like <code>{"progress": "remaining", "target": "led_all"}</code>.
+ */
+public final class SignalCommand {
+    private final Map<Long, CompiledScheme> schemes;
+    private String progress, progress_target;
+
+    public SignalCommand() {
+        schemes = new LinkedHashMap<>();
+    }
+
+    /**
+     * @param target bitmask of pin ids
+     * @param scheme null means off
+     */
+    public void put(long target, CompiledScheme scheme) {
+        schemes.put(target, scheme);
+    }
+
+    public void setProgress(String progress) {
+        this.progress = progress;
+    }
+
+    public void setProgress_target(String progress_target) {
+        this.progress_target = progress_target;
+    }
+
+    /**
+     * @return the timer of the progress bar, if this is a progress command
+     */
+    public Optional<String> getProgress() {
+        return Optional.ofNullable(progress);
+    }
+
+    public String getProgress_target() {
+        return progress_target == null ? PinHandler.LED_ALL : progress_target;
+    }
+
+    /**
+     * @return all targets in the order they came in
+     */
+    public Set<Long> getTargets() {
+        return Collections.unmodifiableSet(schemes.keySet());
+    }
+
+    /**
+     * @return all pins touched by this command
+     */
+    public long getMask() {
+        long mask = 0L;
+        for (long target : schemes.keySet()) mask |= target;
+        return mask;
+    }
+
+    /**
+     * @return null means off
+     */
+    public CompiledScheme get(long target) {
+        return schemes.get(target);
+    }
+
+    /**
+     * the order of the targets doesn't count. Groups are applied before single pins anyway.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SignalCommand)) return false;
+        SignalCommand that = (SignalCommand) o;
+        return schemes.equals(that.schemes) && Objects.equals(progress, that.progress) && Objects.equals(progress_target, that.progress_target);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(schemes, progress, progress_target);
+    }
+
+    @Override
+    public String toString() {
+        if (progress != null) return "SignalCommand(progress=" + progress + ", target=" + getProgress_target() + ")";
+        StringBuilder sb = new StringBuilder("SignalCommand(");
+        schemes.forEach((target, scheme) -> sb.append(Long.toHexString(target)).append('=').append(scheme).append(", "));
+        if (!schemes.isEmpty()) sb.setLength(sb.length() - 2);
+        return sb.append(")").toString();
+    }
+}
@@ -0,0 +1,101 @@
+package de.flashheart.rlgagent.hardware;
+
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts frames on one {@link DisplaySink} with its own thread, so the display thread (timers, page rotation) never
+ * waits for the I2C bus, Swing or the broker.
+ * <p>
+ * The hand over is a mailbox with a single slot. Only the latest frame counts. If the sink is behind or its minimum
+ * interval has not passed yet, a frame that has not been picked up is replaced by the newer one and counted as
+ * dropped. A frame with the same text as the last one shown is skipped.
+ */
+@Log4j2
+public class SinkWriter implements Runnable {
+    private final DisplaySink sink;
+    private final SignalClock clock;
+    private final long min_interval; // ns
+    private final Thread thread;
+    private final AtomicReference<Frame> mailbox;
+    private final JitterHistogram latency;
+    private final AtomicLong frames, dropped, unchanged, errors;
+    private Frame shown; // writer thread only
+    private long last_shown; // clock time
+
+    public SinkWriter(DisplaySink sink, SignalClock clock) {
+        this.sink = sink;
+        this.clock = clock;
+        this.min_interval = TimeUnit.MILLISECONDS.toNanos(sink.getMin_interval());
+        mailbox = new AtomicReference<>();
+        latency = new JitterHistogram();
+        frames = new AtomicLong();
+        dropped = new AtomicLong();
+        unchanged = new AtomicLong();
+        errors = new AtomicLong();
+        thread = new Thread(this, "Sink-" + sink.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * hands a rendered frame over to the writer. Never blocks.
+     */
+    public void offer(Frame frame) {
+        if (mailbox.getAndSet(frame) != null) dropped.incrementAndGet();
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        last_shown = clock.now() - min_interval;
+        while (!thread.isInterrupted()) {
+            if (mailbox.get() == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            final long wait = last_shown + min_interval - clock.now();
+            if (wait > 0) { // newer frames may still come in. only the last one is shown.
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            final Frame frame = mailbox.getAndSet(null);
+            if (frame.same_text(shown)) {
+                unchanged.incrementAndGet();
+                continue;
+            }
+            try {
+                sink.show(frame, shown);
+                shown = frame;
+                last_shown = clock.now();
+                latency.record(last_shown - frame.getRendered());
+                frames.incrementAndGet();
+            } catch (Exception e) {
+                errors.incrementAndGet();
+                log.error("{} - {}", sink.getName(), e);
+            }
+        }
+    }
+
+    public DisplaySink getSink() {
+        return sink;
+    }
+
+    /**
+     * @return the counters of the writer and the statistics of the sink. The latency is measured from the end of
+     * rendering until the sink is done.
+     */
+    public JSONObject toJson() {
+        return sink.toJson()
+                .put("frames", frames.get())
+                .put("dropped", dropped.get())
+                .put("unchanged", unchanged.get())
+                .put("errors", errors.get())
+                .put("latency", latency.toJson());
+    }
+}
@@ -0,0 +1,33 @@
+package de.flashheart.rlgagent.hardware;
+
+import de.flashheart.rlgagent.ui.MyUI;
+
+/**
+ * The simulated LCD in the GUI on a desktop. Only changed lines are passed to Swing.
+ */
+public class SwingSink implements DisplaySink {
+    private final MyUI myUI;
+
+    /**
+     * creates the lines on the gui
+     */
+    public SwingSink(MyUI myUI, int cols, int rows) {
+        this.myUI = myUI;
+        for (int l = 0; l < rows; l++) myUI.addLCDLine(cols);
+    }
+
+    @Override
+    public String getName() {
+        return "gui";
+    }
+
+    @Override
+    public long getMin_interval() {
+        return 0L;
+    }
+
+    @Override
+    public void show(Frame frame, Frame previous) {
+        for (int r = 0; r < frame.rows(); r++) if (frame.changed(previous, r)) myUI.setLine(r, frame.line(r));
+    }
+}
@@ -0,0 +1,322 @@
+package de.flashheart.rlgagent.hardware;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The countdown timers of the agent. Every timer is an absolute deadline on the {@link SignalClock}, so it can't
+ * drift, no matter how late the display thread wakes up.
+ * <p>
+ * The timers are kept in a priority queue, ordered by their next event. An event is either the next change of the
+ * displayed second or the expiry. A tick only looks at the timers which are due, each of them costs O(log n) to
+ * requeue. Texts below one hour are created once and cached. Above an hour, every new second creates one String.
+ * <p>
+ * Others can subscribe to thresholds of a timer by name, either as ratios of the elapsed time or as remaining times.
+ * When the timer is set, the thresholds are turned into clock times and queued like any other event. So a subscriber
+ * is only called when a threshold is actually crossed. A subscription outlives its timer and starts over when a
+ * timer with the same name is set again.
+ * <p>
+ * Listeners are only called from {@link #tick(Listener)}, never from the threads which set timers or subscribe.
+ */
+public class TimerEngine {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final int CACHED_SECONDS = 3600;
+    private static final String[] MM_SS = new String[CACHED_SECONDS];
+
+    private final SignalClock clock;
+    private final HashMap<String, Timer> timers;
+    private final HashMap<String, List<Subscription>> subscriptions;
+    private final PriorityQueue<Event> events;
+
+    public interface Listener {
+        /**
+         * the displayed text of a timer has changed
+         */
+        void changed(Timer timer, String text);
+
+        /**
+         * the timer has run out and is gone
+         */
+        void expired(Timer timer);
+    }
+
+    public interface ThresholdListener {
+        /**
+         * @param crossed number of thresholds crossed so far. Also called with the current number on the first tick
+         *                after the timer has been set or the subscription has been made.
+         */
+        void crossed(int crossed);
+
+        /**
+         * the timer has run out
+         */
+        void finished();
+
+        /**
+         * the timer has been cleared before it ran out
+         */
+        void cleared();
+    }
+
+    public TimerEngine(SignalClock clock) {
+        this.clock = clock;
+        timers = new HashMap<>();
+        subscriptions = new HashMap<>();
+        events = new PriorityQueue<>(Comparator.comparingLong(event -> event.next_event));
+    }
+
+    /**
+     * starts a timer. A running timer with the same name is replaced.
+     *
+     * @param name   of the timer. also the name of the variable on the display.
+     * @param millis initial value
+     */
+    public synchronized void set(String name, long millis) {
+        Timer previous = timers.remove(name);
+        if (previous != null) events.remove(previous);
+        final long now = clock.now();
+        Timer timer = new Timer(name, millis, now + TimeUnit.MILLISECONDS.toNanos(millis), now);
+        timers.put(name, timer);
+        events.add(timer);
+        for (Subscription subscription : subscriptions.getOrDefault(name, Collections.emptyList())) {
+            events.remove(subscription);
+            subscription.start(timer, now);
+            events.add(subscription);
+        }
+    }
+
+    /**
+     * removes all timers. Their subscribers are told on the next tick that they have been cleared.
+     *
+     * @return the timers that were running
+     */
+    public synchronized Collection<Timer> clear() {
+        ArrayList<Timer> cleared = new ArrayList<>(timers.values());
+        timers.clear();
+        events.clear();
+        final long now = clock.now();
+        cleared.forEach(timer -> subscriptions.getOrDefault(timer.name, Collections.emptyList()).forEach(subscription -> {
+            subscription.cleared = true;
+            subscription.next_event = now;
+            events.add(subscription);
+        }));
+        return cleared;
+    }
+
+    /**
+     * @param timer    name of the timer. It does not need to be running yet.
+     * @param ratios   of the elapsed time, between 0 and 1, e.g. 0.25, 0.5, 0.75
+     * @param listener to be called when a threshold is crossed
+     * @return the subscription, to unsubscribe later
+     */
+    public synchronized Subscription subscribe_ratios(String timer, double[] ratios, ThresholdListener listener) {
+        double[] sorted = ratios.clone();
+        Arrays.sort(sorted);
+        return subscribe(new Subscription(timer, sorted, null, listener));
+    }
+
+    /**
+     * @param timer     name of the timer. It does not need to be running yet.
+     * @param remaining times in ms, e.g. 60000, 30000, 10000
+     * @param listener  to be called when a threshold is crossed
+     * @return the subscription, to unsubscribe later
+     */
+    public synchronized Subscription subscribe_remaining(String timer, long[] remaining, ThresholdListener listener) {
+        long[] sorted = remaining.clone();
+        Arrays.sort(sorted); // the largest remaining time is crossed first
+        for (int i = 0; i < sorted.length / 2; i++) {
+            long swap = sorted[i];
+            sorted[i] = sorted[sorted.length - 1 - i];
+            sorted[sorted.length - 1 - i] = swap;
+        }
+        return subscribe(new Subscription(timer, null, sorted, listener));
+    }
+
+    private Subscription subscribe(Subscription subscription) {
+        subscriptions.computeIfAbsent(subscription.timer, name -> new ArrayList<>()).add(subscription);
+        Timer timer = timers.get(subscription.timer);
+        if (timer != null) { // already running
+            subscription.start(timer, clock.now());
+            events.add(subscription);
+        }
+        return subscription;
+    }
+
+    public synchronized void unsubscribe(Subscription subscription) {
+        events.remove(subscription);
+        subscriptions.getOrDefault(subscription.timer, new ArrayList<>()).remove(subscription);
+    }
+
+    /**
+     * handles all timers and thresholds which are due.
+     *
+     * @param listener is told about new texts and expired timers
+     * @return the clock time of the next event. Long.MAX_VALUE if there are no timers.
+     */
+    public synchronized long tick(Listener listener) {
+        final long now = clock.now();
+        Event event;
+        while ((event = events.peek()) != null && now - event.next_event >= 0) {
+            events.poll();
+            if (event instanceof Subscription) {
+                final Subscription subscription = (Subscription) event;
+                if (subscription.cleared) {
+                    subscription.cleared = false;
+                    subscription.listener.cleared();
+                    if (!timers.containsKey(subscription.timer)) { // not set again in the meantime
+                        subscription.next_event = Long.MAX_VALUE;
+                        continue;
+                    }
+                }
+                subscription.advance(now);
+                if (subscription.isActive()) events.add(subscription);
+                continue;
+            }
+            final Timer timer = (Timer) event;
+            final long remaining = timer.deadline - now;
+            if (remaining <= 0) {
+                timers.remove(timer.name);
+                listener.expired(timer);
+                for (Subscription subscription : subscriptions.getOrDefault(timer.name, Collections.emptyList())) {
+                    events.remove(subscription);
+                    subscription.listener.finished();
+                }
+                continue;
+            }
+            final long second = remaining / SECOND;
+            // shown until less than this second is left
+            timer.next_event = second > 0 ? timer.deadline - second * SECOND + 1 : timer.deadline;
+            if (second != timer.shown_second) {
+                timer.shown_second = second;
+                listener.changed(timer, format(second, timer.buffer));
+            }
+            events.add(timer);
+        }
+        event = events.peek();
+        return event == null ? Long.MAX_VALUE : event.next_event;
+    }
+
+    /**
+     * @return mm:ss below one hour, HH:mm:ss above
+     */
+    static String format(long seconds, char[] buffer) {
+        if (seconds < CACHED_SECONDS) {
+            String text = MM_SS[(int) seconds];
+            if (text == null) { // a harmless race. at worst, the same text is created twice.
+                put2(seconds / 60, buffer, 0);
+                buffer[2] = ':';
+                put2(seconds % 60, buffer, 3);
+                text = new String(buffer, 0, 5);
+                MM_SS[(int) seconds] = text;
+            }
+            return text;
+        }
+        put2(seconds / 3600 % 24, buffer, 0);
+        buffer[2] = ':';
+        put2(seconds / 60 % 60, buffer, 3);
+        buffer[5] = ':';
+        put2(seconds % 60, buffer, 6);
+        return new String(buffer, 0, 8);
+    }
+
+    private static void put2(long value, char[] buffer, int pos) {
+        buffer[pos] = (char) ('0' + value / 10);
+        buffer[pos + 1] = (char) ('0' + value % 10);
+    }
+
+    /**
+     * something in the queue
+     */
+    private static abstract class Event {
+        long next_event = Long.MAX_VALUE; // clock time
+
+        boolean isActive() {
+            return next_event != Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * A running timer. Only the engine changes it.
+     */
+    public static final class Timer extends Event {
+        private final String name;
+        private final long initial; // ms
+        private final long start; // clock time
+        private final long deadline; // clock time
+        private long shown_second;
+        private final char[] buffer;
+
+        private Timer(String name, long initial, long deadline, long now) {
+            this.name = name;
+            this.initial = initial;
+            this.start = now;
+            this.deadline = deadline;
+            this.next_event = now; // due right away
+            this.shown_second = -1;
+            this.buffer = new char[8];
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the initial value in ms
+         */
+        public long getInitial() {
+            return initial;
+        }
+
+        /**
+         * @return ms left. 0 or less when the timer has run out.
+         */
+        public long remaining(long now) {
+            return TimeUnit.NANOSECONDS.toMillis(deadline - now);
+        }
+    }
+
+    /**
+     * the thresholds somebody is interested in. Only the engine changes it.
+     */
+    public static final class Subscription extends Event {
+        private final String timer;
+        private final double[] ratios; // either these
+        private final long[] remaining; // or these
+        private final ThresholdListener listener;
+        private final long[] at; // the thresholds as clock times for the current timer
+        private int crossed;
+        private boolean cleared; // the listener still has to be told
+
+        private Subscription(String timer, double[] ratios, long[] remaining, ThresholdListener listener) {
+            this.timer = timer;
+            this.ratios = ratios;
+            this.remaining = remaining;
+            this.listener = listener;
+            this.at = new long[ratios != null ? ratios.length : remaining.length];
+        }
+
+        /**
+         * a timer with our name was set. The listener learns about it on the next tick, which is due right away.
+         */
+        private void start(Timer timer, long now) {
+            final long length = timer.deadline - timer.start;
+            for (int i = 0; i < at.length; i++)
+                at[i] = ratios != null ? timer.start + (long) (ratios[i] * length) : timer.deadline - TimeUnit.MILLISECONDS.toNanos(remaining[i]);
+            crossed = 0;
+            next_event = now;
+        }
+
+        private void advance(long now) {
+            while (crossed < at.length && now - at[crossed] >= 0) crossed++;
+            next_event = crossed < at.length ? at[crossed] : Long.MAX_VALUE;
+            listener.crossed(crossed);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package de.flashheart.rlgagent.hardware;
+
+/**
+ * Something the PinHandler thread has to attend to at a given time. Either a single pin playing its scheme
+ * ({@link PinScheme}) or several pins playing a choreography ({@link Ensemble}).
+ */
+abstract class Track {
+    public static final long IDLE = Long.MAX_VALUE;
+    long next_edge = IDLE; // System.nanoTime() when the current segment ends. IDLE if there is nothing to do.
+
+    /**
+     * called when next_edge has been reached. Switches the pins and calculates the following edge.
+     */
+    abstract void advance();
+
+    boolean isActive() {
+        return next_edge != IDLE;
+    }
+
+    long getNext_edge() {
+        return next_edge;
+    }
+}
@@ -0,0 +1,58 @@
+package de.flashheart.rlgagent.hardware;
+
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+
+/**
+ * The replacement variables for the LCD (like <code>${wifi}</code> or the timers). Every variable name gets a slot
+ * number once, when it is first used in a line or set. After that, a {@link LineTemplate} reads the value by its
+ * slot number without any lookup.
+ * <p>
+ * Variables are set by the command threads and read by the display thread. Reading never blocks.
+ */
+public class VariableTable {
+    private final HashMap<String, Integer> slots;
+    private final IntConsumer on_change;
+    private volatile AtomicReferenceArray<String> values;
+
+    /**
+     * @param on_change is told the slot of every variable which got a new value
+     */
+    public VariableTable(IntConsumer on_change) {
+        this.on_change = on_change;
+        slots = new HashMap<>();
+        values = new AtomicReferenceArray<>(16);
+    }
+
+    /**
+     * @param name of the variable without the braces
+     * @return the slot of the variable. A new one, if the name is unknown yet.
+     */
+    public synchronized int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) return slot;
+        slot = slots.size();
+        slots.put(name, slot);
+        if (slot >= values.length()) { // grow
+            AtomicReferenceArray<String> grown = new AtomicReferenceArray<>(values.length() * 2);
+            for (int i = 0; i < values.length(); i++) grown.set(i, values.get(i));
+            values = grown;
+        }
+        return slot;
+    }
+
+    public synchronized void set(String name, String value) {
+        final int slot = slot(name); // may grow the array
+        if (!Objects.equals(values.getAndSet(slot, value), value)) on_change.accept(slot);
+    }
+
+    /**
+     * @return the value or null if the variable has never been set
+     */
+    public String get(int slot) {
+        final AtomicReferenceArray<String> values = this.values;
+        return slot < values.length() ? values.get(slot) : null;
+    }
+}
@@ -0,0 +1,95 @@
+package de.flashheart.rlgagent.misc;
+
+import de.flashheart.rlgagent.hardware.JitterHistogram;
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The commands of one subsystem (like signals or audio), executed one after another on its own thread. So a slow
+ * command (e.g. starting mpg321) only delays the commands of its own subsystem and the MQTT thread only has to enqueue.
+ * <p>
+ * The queue is bounded. When it is full, the new command is rejected and counted, so a stuck subsystem can't eat up
+ * the memory of the agent.
+ */
+@Log4j2
+public class CommandQueue implements Runnable {
+    public static final int CAPACITY = 64;
+    private final String name;
+    private final ArrayBlockingQueue<Job> jobs;
+    private final Thread thread;
+    private final JitterHistogram wait;
+    private final AtomicLong executed, rejected;
+    private volatile int max_depth;
+
+    public CommandQueue(String name) {
+        this.name = name;
+        jobs = new ArrayBlockingQueue<>(CAPACITY);
+        wait = new JitterHistogram();
+        executed = new AtomicLong();
+        rejected = new AtomicLong();
+        max_depth = 0;
+        thread = new Thread(this, "Commands-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * never blocks
+     *
+     * @return false if the queue is full
+     */
+    public boolean submit(Runnable task) {
+        if (!jobs.offer(new Job(task, System.nanoTime()))) {
+            rejected.incrementAndGet();
+            log.warn("{} queue is full - command rejected", name);
+            return false;
+        }
+        final int depth = jobs.size();
+        if (depth > max_depth) max_depth = depth;
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while (!thread.isInterrupted()) {
+            final Job job;
+            try {
+                job = jobs.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            wait.record(System.nanoTime() - job.enqueued);
+            try {
+                job.task.run();
+            } catch (Exception e) {
+                log.error("{} - {}", name, e.toString());
+            }
+            executed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the current and the maximum depth and how long the commands waited before they were executed
+     */
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("depth", jobs.size())
+                .put("max_depth", max_depth)
+                .put("executed", executed.get())
+                .put("rejected", rejected.get())
+                .put("wait", wait.toJson());
+    }
+
+    private static final class Job {
+        private final Runnable task;
+        private final long enqueued;
+
+        private Job(Runnable task, long enqueued) {
+            this.task = task;
+            this.enqueued = enqueued;
+        }
+    }
+}
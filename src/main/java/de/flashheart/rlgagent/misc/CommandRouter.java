@@ -0,0 +1,167 @@
+package de.flashheart.rlgagent.misc;
+
+import de.flashheart.rlgagent.hardware.JitterHistogram;
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONObject;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds the handler for an incoming command. The command is the last part of the topic, e.g.
+ * <code>rlg/cmd/ag01/visual</code>. The topic is checked against the prefix of the agent and the command is looked up
+ * in an open addressing table, without splitting the topic or creating any strings. Commands are case insensitive.
+ * <p>
+ * Handlers are registered by name before the agent connects to the broker. The table is replaced as a whole when a
+ * handler is added, so routing never takes a lock.
+ * <p>
+ * Every handler belongs to a {@link Subsystem}. The router only puts the command into the {@link CommandQueue} of its
+ * subsystem and returns. Commands of one subsystem are executed in the order they came in. A slow subsystem never
+ * holds up the others.
+ * <p>
+ * Every command counts its invocations and errors and records how long the handler took.
+ */
+@Log4j2
+public class CommandRouter {
+    private final String prefix;
+    private final Map<String, Command> registered;
+    private volatile Command[] table; // open addressing, size is a power of two
+    private final AtomicLong unknown;
+    private final EnumMap<Subsystem, CommandQueue> queues;
+
+    public enum Subsystem {
+        SIGNALS, DISPLAY, AUDIO, RFID, CONTROL
+    }
+
+    public interface Handler {
+        /**
+         * @param payload as received. May be empty.
+         */
+        void handle(byte[] payload) throws Exception;
+    }
+
+    /**
+     * @param prefix the part of the topic before the command, like <code>rlg/cmd/ag01/</code>
+     */
+    public CommandRouter(String prefix) {
+        this.prefix = prefix;
+        registered = new LinkedHashMap<>();
+        table = new Command[1];
+        unknown = new AtomicLong();
+        queues = new EnumMap<>(Subsystem.class);
+        for (Subsystem subsystem : Subsystem.values())
+            queues.put(subsystem, new CommandQueue(subsystem.name().toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * adds a handler. A handler with the same name is replaced.
+     *
+     * @param name      of the command. case insensitive.
+     * @param subsystem the handler runs on the queue of this subsystem
+     */
+    public synchronized void register(String name, Subsystem subsystem, Handler handler) {
+        registered.put(name.toLowerCase(Locale.ROOT), new Command(name.toLowerCase(Locale.ROOT), queues.get(subsystem), handler));
+        int size = 1;
+        while (size < registered.size() * 2) size <<= 1;
+        Command[] table = new Command[size];
+        for (Command command : registered.values()) {
+            int i = hash(command.name, 0, command.name.length()) & (size - 1);
+            while (table[i] != null) i = (i + 1) & (size - 1);
+            table[i] = command;
+        }
+        this.table = table;
+    }
+
+    /**
+     * queues the handler for the command in the topic. Errors of the handler are logged and counted, but not thrown.
+     *
+     * @param topic   the full topic
+     * @param payload the message
+     * @return false if the topic is not meant for us, the command is unknown or its queue is full
+     */
+    public boolean route(String topic, byte[] payload) {
+        if (!topic.startsWith(prefix)) return false;
+        final int start = topic.lastIndexOf('/') + 1;
+        if (start < prefix.length() || start == topic.length()) return false;
+        final Command command = find(topic, start, topic.length());
+        if (command == null) {
+            unknown.incrementAndGet();
+            log.warn("unknown command {}", topic.substring(start));
+            return false;
+        }
+        return command.queue.submit(() -> command.invoke(payload));
+    }
+
+    private Command find(String topic, int start, int end) {
+        final Command[] table = this.table;
+        final int mask = table.length - 1;
+        int i = hash(topic, start, end) & mask;
+        for (int probes = 0; probes < table.length; probes++, i = (i + 1) & mask) {
+            final Command command = table[i];
+            if (command == null) return null;
+            if (command.name.length() == end - start && topic.regionMatches(true, start, command.name, 0, end - start))
+                return command;
+        }
+        return null;
+    }
+
+    /**
+     * case folded, so "Visual" and "visual" hash the same
+     */
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) h = 31 * h + Character.toLowerCase(s.charAt(i));
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return per command: invocations, errors and how long the handlers took. per queue: depth and wait times.
+     */
+    public synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        registered.values().forEach(command -> {
+            if (command.invocations.get() > 0) json.put(command.name, command.toJson());
+        });
+        JSONObject queues = new JSONObject();
+        this.queues.forEach((subsystem, queue) -> queues.put(subsystem.name().toLowerCase(Locale.ROOT), queue.toJson()));
+        return json.put("unknown", unknown.get()).put("queues", queues);
+    }
+
+    private static final class Command {
+        private final String name;
+        private final CommandQueue queue;
+        private final Handler handler;
+        private final AtomicLong invocations, errors;
+        private final JitterHistogram duration;
+
+        private Command(String name, CommandQueue queue, Handler handler) {
+            this.name = name;
+            this.queue = queue;
+            this.handler = handler;
+            invocations = new AtomicLong();
+            errors = new AtomicLong();
+            duration = new JitterHistogram();
+        }
+
+        private void invoke(byte[] payload) {
+            final long start = System.nanoTime();
+            invocations.incrementAndGet();
+            try {
+                handler.handle(payload);
+            } catch (Exception e) {
+                errors.incrementAndGet();
+                log.error("{} - {}", name, e.toString());
+            }
+            duration.record(System.nanoTime() - start);
+        }
+
+        private JSONObject toJson() {
+            return duration.toJson()
+                    .put("count", invocations.get())
+                    .put("errors", errors.get());
+        }
+    }
+}
@@ -43,10 +43,14 @@ public class Configs extends AbstractConfigs {
     public static final String IN_BTN01 = "btn01";
     public static final String IN_BTN02 = "btn02";
     public static final String BUTTON_DEBOUNCE = "button_debounce";
-    public static final String LCD_I2C_ADDRESS = "lcd_i2c_address";
+    public static final String LCD_I2C_ADDRESS = "lcd_i2c_address"; // space separated list. all LCDs show the same.
     public static final String LCD_ROWS = "lcd_rows";
     public static final String LCD_COLS = "lcd_cols";
-    public static final String MCP23017_I2C_ADDRESS = "mcp23017_i2c_address";
+    public static final String LCD_BULK_WRITES = "lcd_bulk_writes"; // false for one i2c write per nibble (the old way)
+    public static final String LCD_MIRROR_INTERVAL = "lcd_mirror_interval"; // ms between two frames on the display event topic. 0 for none.
+    public static final String MCP23017_I2C_ADDRESS = "mcp23017_i2c_address"; // space separated list, e.g. "0x20 0x21"
+    public static final String GPIOMEM_DEVICE = "gpiomem_device"; // empty to write the GPIO header via pi4j
+    public static final String PIN_GROUPS = "pin_groups"; // user defined pin groups like "team_red:red,sir1 corners:wht,blu"
     //    public static final String LOGLEVEL = "loglevel";
     public static final String[] ALL_LEDS = new String[]{OUT_LED_WHITE, OUT_LED_RED, OUT_LED_YELLOW, OUT_LED_GREEN, OUT_LED_BLUE};
     public static final String[] ALL_SIRENS = new String[]{OUT_SIREN1, OUT_SIREN2, OUT_SIREN3, OUT_SIREN4, OUT_BUZZER};
@@ -80,6 +84,8 @@ public class Configs extends AbstractConfigs {
     public static final String NETWORKING_MONITOR_INTERVAL_IN_SECONDS = "network_monitor_interval_in_seconds";
     public static final String STATUS_INTERVAL_IN_SECONDS = "status_interval_in_seconds";
     public static final String NETWORKING_MONITOR_DISCONNECT_AFTER_FAILED_PINGS = "networking_monitor_disconnect_after_failed_pings";
+    // builtin resource and optional override in the workspace
+    public static final String SCHEME_MACROS_FILE = "scheme_macros.json";
 
 //    public Properties get_blink_schemes() {
 //        return blink_schemes;
@@ -93,7 +99,7 @@ public class Configs extends AbstractConfigs {
         super(System.getProperties().getProperty("workspace"));
         // predefined schemes belong to the config file
         // so we can change the commander without necessarily having to update the agent, too
-        scheme_macros = new JSONObject(IOUtils.toString(this.getClass().getClassLoader().getResourceAsStream("scheme_macros.json"), StandardCharsets.UTF_8));
+        scheme_macros = new JSONObject(IOUtils.toString(this.getClass().getClassLoader().getResourceAsStream(SCHEME_MACROS_FILE), StandardCharsets.UTF_8));
         log.debug("breakpoint");
     }
 
@@ -167,10 +173,13 @@ public class Configs extends AbstractConfigs {
 
         configs.setProperty(LCD_I2C_ADDRESS, "0x27");
         configs.setProperty(MCP23017_I2C_ADDRESS, "0x20");
+        configs.setProperty(GPIOMEM_DEVICE, "");
         configs.setProperty(BUTTON_DEBOUNCE, "200");
 
         configs.setProperty(LCD_COLS, "20");
         configs.setProperty(LCD_ROWS, "4");
+        configs.setProperty(LCD_BULK_WRITES, "true");
+        configs.setProperty(LCD_MIRROR_INTERVAL, "0");
 
         configs.setProperty(LOGLEVEL, Level.DEBUG.name());
 
@@ -191,6 +200,7 @@ public class Configs extends AbstractConfigs {
         configs.setProperty(TRIGGER_ON_HIGH_SIREN2, "true");
         configs.setProperty(TRIGGER_ON_HIGH_SIREN3, "true");
         configs.setProperty(TRIGGER_ON_HIGH_SIREN4, "true");
+        configs.setProperty(PIN_GROUPS, "");
 
         configs.setProperty(IN_BTN01, RaspiPin.GPIO_03.getName()); // 15
         configs.setProperty(IN_BTN02, RaspiPin.GPIO_04.getName()); // 16
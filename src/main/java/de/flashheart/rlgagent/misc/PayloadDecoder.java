@@ -0,0 +1,192 @@
+package de.flashheart.rlgagent.misc;
+
+import de.flashheart.rlgagent.hardware.CompiledScheme;
+import de.flashheart.rlgagent.hardware.PinHandler;
+import de.flashheart.rlgagent.hardware.SignalCommand;
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the payloads of the commands visual, acoustic, timers, vars and paged. Every command can be decoded from
+ * the raw bytes with a {@link PayloadReader}, which goes straight into the compiled schemes, timers and variables, or
+ * from an org.json tree. Both ways lead to the same result. The bytes are used for incoming messages, the trees for
+ * commands the agent builds itself.
+ * <p>
+ * Keys keep the order of the payload.
+ */
+@Log4j2
+public class PayloadDecoder {
+    public static final String PROGRESS = "progress";
+    public static final String TARGET = "target";
+    public static final String CLEAR_ALL = "_clearall";
+
+    /**
+     * <code>{"led_all": "off", "wht": "fast", "sir1": {"repeat": 3, "scheme": [250, -250]}}</code>
+     *
+     * @param pinHandler knows the targets and the macros
+     */
+    public static SignalCommand signals(byte[] payload, PinHandler pinHandler) {
+        final SignalCommand command = new SignalCommand();
+        final PayloadReader reader = new PayloadReader(payload);
+        if (reader.is_empty()) return command;
+        reader.begin_object();
+        for (String key = reader.next_key(); key != null; key = reader.next_key()) {
+            final long mask = pinHandler.resolve(key);
+            if (mask == 0L) {
+                if (key.equals(PROGRESS)) command.setProgress(reader.string());
+                else if (key.equals(TARGET)) command.setProgress_target(reader.text());
+                else {
+                    log.warn("unknown pin {}", key);
+                    reader.skip();
+                }
+                continue;
+            }
+            if (reader.is_string()) {
+                final String value = reader.string();
+                if (value.equalsIgnoreCase("off")) command.put(mask, null);
+                else command.put(mask, macro(key, value, pinHandler));
+                continue;
+            }
+            command.put(mask, scheme(reader));
+        }
+        return command;
+    }
+
+    /**
+     * <code>{"repeat": 3, "scheme": [250, -250]}</code>
+     */
+    private static CompiledScheme scheme(PayloadReader reader) {
+        Integer repeat = null;
+        int[] durations = null;
+        reader.begin_object();
+        for (String key = reader.next_key(); key != null; key = reader.next_key()) {
+            if (key.equals("repeat")) repeat = reader.int_value();
+            else if (key.equals("scheme")) {
+                int[] buffer = new int[16];
+                int size = 0;
+                reader.begin_array();
+                while (reader.has_next()) {
+                    if (size == buffer.length) buffer = Arrays.copyOf(buffer, size * 2);
+                    buffer[size++] = reader.int_value();
+                }
+                durations = Arrays.copyOf(buffer, size);
+            } else reader.skip();
+        }
+        if (repeat == null || durations == null) throw new JSONException("repeat and scheme needed");
+        return CompiledScheme.of(repeat, durations);
+    }
+
+    private static CompiledScheme macro(String key, String name, PinHandler pinHandler) {
+        final CompiledScheme scheme = pinHandler.getScheme_library().get(name);
+        if (scheme == null) throw new JSONException("JSONObject[\"" + key + "\"] is neither a known macro nor a scheme: " + name);
+        return scheme;
+    }
+
+    public static SignalCommand signals(JSONObject json, PinHandler pinHandler) {
+        final SignalCommand command = new SignalCommand();
+        for (String key : json.keySet()) {
+            final long mask = pinHandler.resolve(key);
+            if (mask == 0L) {
+                if (key.equals(PROGRESS)) command.setProgress(json.getString(key));
+                else if (key.equals(TARGET)) command.setProgress_target(json.optString(key));
+                else log.warn("unknown pin {}", key);
+                continue;
+            }
+            final Object value = json.get(key);
+            if (value instanceof String) {
+                if (((String) value).equalsIgnoreCase("off")) command.put(mask, null);
+                else command.put(mask, macro(key, (String) value, pinHandler));
+                continue;
+            }
+            final JSONObject json_scheme = json.getJSONObject(key);
+            command.put(mask, CompiledScheme.of(json_scheme.getInt("repeat"), json_scheme.getJSONArray("scheme")));
+        }
+        return command;
+    }
+
+    /**
+     * <code>{"remaining": 120, "respawn": 10}</code> in seconds or <code>{"_clearall": "true"}</code>
+     *
+     * @return the timers by name. {@link #CLEAR_ALL} comes with 0.
+     */
+    public static Map<String, Long> timers(byte[] payload) {
+        final LinkedHashMap<String, Long> timers = new LinkedHashMap<>();
+        final PayloadReader reader = new PayloadReader(payload);
+        if (reader.is_empty()) return timers;
+        reader.begin_object();
+        for (String key = reader.next_key(); key != null; key = reader.next_key()) {
+            if (key.equals(CLEAR_ALL)) {
+                reader.skip();
+                timers.put(key, 0L);
+            } else timers.put(key, reader.long_value());
+        }
+        return timers;
+    }
+
+    public static Map<String, Long> timers(JSONObject json) {
+        final LinkedHashMap<String, Long> timers = new LinkedHashMap<>();
+        json.keySet().forEach(key -> timers.put(key, key.equals(CLEAR_ALL) ? 0L : json.getLong(key)));
+        return timers;
+    }
+
+    /**
+     * <code>{"score": 120, "team": "red"}</code>
+     *
+     * @return every value as text
+     */
+    public static Map<String, String> vars(byte[] payload) {
+        final LinkedHashMap<String, String> vars = new LinkedHashMap<>();
+        final PayloadReader reader = new PayloadReader(payload);
+        if (reader.is_empty()) return vars;
+        reader.begin_object();
+        for (String key = reader.next_key(); key != null; key = reader.next_key()) vars.put(key, reader.text());
+        return vars;
+    }
+
+    public static Map<String, String> vars(JSONObject json) {
+        final LinkedHashMap<String, String> vars = new LinkedHashMap<>();
+        json.keySet().forEach(key -> vars.put(key, json.get(key).toString()));
+        return vars;
+    }
+
+    /**
+     * <code>{"page0": ["line 1", "line 2", "line 3", "line 4"]}</code>
+     *
+     * @return the lines by page
+     */
+    public static Map<String, List<String>> pages(byte[] payload) {
+        final LinkedHashMap<String, List<String>> pages = new LinkedHashMap<>();
+        final PayloadReader reader = new PayloadReader(payload);
+        if (reader.is_empty()) return pages;
+        reader.begin_object();
+        for (String key = reader.next_key(); key != null; key = reader.next_key()) {
+            final List<String> lines = new ArrayList<>(4);
+            reader.begin_array();
+            while (reader.has_next()) {
+                if (!reader.is_string()) throw new JSONException("lines of page " + key + " must be strings");
+                lines.add(reader.string());
+            }
+            pages.put(key, lines);
+        }
+        return pages;
+    }
+
+    public static Map<String, List<String>> pages(JSONObject json) {
+        final LinkedHashMap<String, List<String>> pages = new LinkedHashMap<>();
+        json.keySet().forEach(key -> {
+            final JSONArray json_lines = json.getJSONArray(key);
+            final List<String> lines = new ArrayList<>(json_lines.length());
+            for (int line = 0; line < json_lines.length(); line++) lines.add(json_lines.getString(line));
+            pages.put(key, lines);
+        });
+        return pages;
+    }
+}
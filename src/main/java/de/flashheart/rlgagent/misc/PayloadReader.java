@@ -0,0 +1,273 @@
+package de.flashheart.rlgagent.misc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads a JSON payload straight from its UTF-8 bytes, one token after the other, without building a tree. The caller
+ * knows the shape it expects and asks for the next key or value. Values it doesn't care about are skipped.
+ * <p>
+ * As lenient as org.json: a comma before a closing bracket is accepted. And as strict: a key must not appear twice in
+ * the same object, not even in a skipped value. Errors are reported as {@link JSONException}, just like on the org.json
+ * path.
+ */
+public class PayloadReader {
+    private final byte[] in;
+    private int pos;
+    // the keys of all open objects. A payload has only a handful, so a list beats a set per object.
+    private final ArrayList<String> keys;
+    // where the keys of each open object start
+    private int[] objects;
+    private int nesting;
+
+    public PayloadReader(byte[] in) {
+        this.in = in;
+        this.pos = 0;
+        this.keys = new ArrayList<>();
+        this.objects = new int[4];
+        this.nesting = 0;
+    }
+
+    /**
+     * @return true if there is nothing but whitespace. An empty payload counts as an empty object.
+     */
+    public boolean is_empty() {
+        return peek() < 0;
+    }
+
+    public void begin_object() {
+        expect('{');
+        open_object();
+    }
+
+    /**
+     * @return the next key of the current object or null when the object has ended
+     */
+    public String next_key() {
+        if (peek() == ',') pos++;
+        if (peek() == '}') {
+            pos++;
+            close_object();
+            return null;
+        }
+        final String key = string();
+        expect(':');
+        add_key(key);
+        return key;
+    }
+
+    public void begin_array() {
+        expect('[');
+    }
+
+    /**
+     * @return true if the current array has another element. Consumes the closing bracket otherwise.
+     */
+    public boolean has_next() {
+        if (peek() == ',') pos++;
+        if (peek() == ']') {
+            pos++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the next character that is not whitespace, without consuming it. -1 at the end.
+     */
+    public int peek() {
+        while (pos < in.length && in[pos] <= ' ' && in[pos] >= 0) pos++;
+        return pos < in.length ? in[pos] : -1;
+    }
+
+    public boolean is_string() {
+        return peek() == '"';
+    }
+
+    /**
+     * reads a string value. The bytes are only copied once, unless there are escapes.
+     */
+    public String string() {
+        expect('"');
+        final int start = pos;
+        while (pos < in.length && in[pos] != '"' && in[pos] != '\\') pos++; // never part of a multibyte sequence
+        if (pos < in.length && in[pos] == '"') return new String(in, start, pos++ - start, StandardCharsets.UTF_8);
+
+        StringBuilder sb = new StringBuilder().append(new String(in, start, pos - start, StandardCharsets.UTF_8));
+        while (true) {
+            if (pos >= in.length) throw error("unterminated string");
+            final byte b = in[pos];
+            if (b == '"') {
+                pos++;
+                return sb.toString();
+            }
+            if (b != '\\') {
+                final int run = pos;
+                while (pos < in.length && in[pos] != '"' && in[pos] != '\\') pos++;
+                sb.append(new String(in, run, pos - run, StandardCharsets.UTF_8));
+                continue;
+            }
+            if (++pos >= in.length) throw error("unterminated string");
+            final byte escaped = in[pos++];
+            switch (escaped) {
+                case 'b': sb.append('\b'); break;
+                case 't': sb.append('\t'); break;
+                case 'n': sb.append('\n'); break;
+                case 'f': sb.append('\f'); break;
+                case 'r': sb.append('\r'); break;
+                case 'u':
+                    if (pos + 4 > in.length) throw error("illegal escape");
+                    try {
+                        sb.append((char) Integer.parseInt(new String(in, pos, 4, StandardCharsets.US_ASCII), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("illegal escape");
+                    }
+                    pos += 4;
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append((char) escaped);
+                    break;
+                default:
+                    throw error("illegal escape");
+            }
+        }
+    }
+
+    /**
+     * @return a number (or a string containing one) like org.json's getLong
+     */
+    public long long_value() {
+        if (!is_string()) {
+            final int start = pos;
+            long value = 0L;
+            boolean negative = pos < in.length && in[pos] == '-';
+            if (negative) pos++;
+            int digits = 0;
+            while (pos < in.length && in[pos] >= '0' && in[pos] <= '9' && digits < 18) {
+                value = value * 10 + (in[pos++] - '0');
+                digits++;
+            }
+            if (digits > 0 && !is_literal_char(pos)) return negative ? -value : value;
+            pos = start; // anything else, like 1.5 or 1e3, is left to org.json
+        }
+        final Object value = scalar();
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value instanceof String) {
+            try {
+                return new BigDecimal((String) value).longValue();
+            } catch (NumberFormatException e) {
+                // handled below
+            }
+        }
+        throw error("not a number: " + value);
+    }
+
+    public int int_value() {
+        return (int) long_value();
+    }
+
+    /**
+     * @return any value as org.json's toString() would show it
+     */
+    public String text() {
+        final int c = peek();
+        if (c == '"') return string();
+        if (c != '{' && c != '[') return scalar().toString();
+        final int start = pos;
+        pos += skip_value();
+        final String json = new String(in, start, pos - start, StandardCharsets.UTF_8);
+        return c == '{' ? new JSONObject(json).toString() : new JSONArray(json).toString();
+    }
+
+    /**
+     * skips the next value, whatever it is
+     */
+    public void skip() {
+        peek();
+        pos += skip_value();
+    }
+
+    /**
+     * @return the length of the value at the current position. The position stays where it is.
+     */
+    private int skip_value() {
+        final int start = pos;
+        int depth = 0;
+        try {
+            do {
+                final int c = peek();
+                if (c == '"') {
+                    final String string = string();
+                    if (peek() == ':') add_key(string);
+                } else if (c == '{' || c == '[') {
+                    if (c == '{') open_object();
+                    depth++;
+                    pos++;
+                } else if (c == '}' || c == ']') {
+                    if (c == '}') close_object();
+                    depth--;
+                    pos++;
+                } else if (c == ',' || c == ':') pos++;
+                else if (c < 0) throw error("unexpected end");
+                else while (is_literal_char(pos)) pos++;
+            } while (depth > 0);
+            return pos - start;
+        } finally {
+            pos = start;
+        }
+    }
+
+    /**
+     * a number, true, false or null - or a string
+     */
+    private Object scalar() {
+        if (is_string()) return string();
+        final int start = pos;
+        while (is_literal_char(pos)) pos++;
+        if (start == pos) throw error("value expected");
+        return JSONObject.stringToValue(new String(in, start, pos - start, StandardCharsets.US_ASCII));
+    }
+
+    private boolean is_literal_char(int i) {
+        if (i >= in.length) return false;
+        final byte b = in[i];
+        return b > ' ' && b != ',' && b != '}' && b != ']' && b != ':' && b != '"';
+    }
+
+    private void open_object() {
+        if (nesting == objects.length) objects = Arrays.copyOf(objects, nesting * 2);
+        objects[nesting++] = keys.size();
+    }
+
+    private void close_object() {
+        if (nesting == 0) return;
+        final int start = objects[--nesting];
+        while (keys.size() > start) keys.remove(keys.size() - 1);
+    }
+
+    /**
+     * @throws JSONException like org.json, if the current object already has this key
+     */
+    private void add_key(String key) {
+        for (int i = nesting == 0 ? 0 : objects[nesting - 1]; i < keys.size(); i++)
+            if (keys.get(i).equals(key)) throw error("Duplicate key \"" + key + "\"");
+        keys.add(key);
+    }
+
+    private void expect(char c) {
+        if (peek() != c) throw error("'" + c + "' expected");
+        pos++;
+    }
+
+    private JSONException error(String message) {
+        return new JSONException(message + " at " + pos);
+    }
+}
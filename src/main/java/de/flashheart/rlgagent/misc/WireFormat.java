@@ -0,0 +1,201 @@
+package de.flashheart.rlgagent.misc;
+
+import de.flashheart.rlgagent.hardware.CompiledScheme;
+import de.flashheart.rlgagent.hardware.PinHandler;
+import de.flashheart.rlgagent.hardware.SignalCommand;
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compact binary form of the signal and timer commands for agents on a weak Wi-Fi. These commands are sent to their
+ * own topics, next to the JSON ones: <code>visual_bin</code>, <code>acoustic_bin</code> and <code>timers_bin</code>.
+ * The status message announces the version and the pin ids.
+ * <p>
+ * Numbers are varints (7 bits per byte, lowest group first, the high bit means "more to come"). Signed numbers are
+ * zigzag encoded first, so small negative numbers stay short. A scheme like <code>[250,-250]</code> needs 4 bytes.
+ * <pre>
+ * signals: version { target kind ... }
+ *   target   bitmask of pin ids
+ *   kind     0 = off
+ *            1 = macro: length, name in UTF-8
+ *            2 = scheme: repeat (signed, -1 is forever), count, durations in ms (signed, negative is off)
+ * timers:  version { length, name in UTF-8, seconds (signed) }
+ * </pre>
+ * A timer named <code>_clearall</code> clears all timers, just like in JSON.
+ */
+@Log4j2
+public class WireFormat {
+    public static final int VERSION = 1;
+    public static final String SUFFIX = "_bin";
+    private static final int OFF = 0, MACRO = 1, SCHEME = 2;
+
+    public static SignalCommand signals(byte[] payload, PinHandler pinHandler) {
+        final SignalCommand command = new SignalCommand();
+        final Reader reader = new Reader(payload);
+        final long known = pinHandler.getMask();
+        while (reader.has_more()) {
+            final long target = reader.varint();
+            final CompiledScheme scheme;
+            final int kind = (int) reader.varint();
+            if (kind == OFF) scheme = null;
+            else if (kind == MACRO) {
+                final String name = reader.string();
+                scheme = pinHandler.getScheme_library().get(name);
+                if (scheme == null) throw new IllegalArgumentException("unknown macro " + name);
+            } else if (kind == SCHEME) {
+                final int repeat = (int) reader.zigzag();
+                final int[] durations = new int[reader.count()];
+                for (int i = 0; i < durations.length; i++) durations[i] = (int) reader.zigzag();
+                scheme = CompiledScheme.of(repeat, durations);
+            } else throw new IllegalArgumentException("unknown kind " + kind);
+
+            if ((target & known) == 0L) {
+                log.warn("unknown pins {}", Long.toHexString(target));
+                continue;
+            }
+            command.put(target & known, scheme);
+        }
+        return command;
+    }
+
+    /**
+     * @return the timers by name, just like {@link PayloadDecoder#timers(byte[])}
+     */
+    public static Map<String, Long> timers(byte[] payload) {
+        final LinkedHashMap<String, Long> timers = new LinkedHashMap<>();
+        final Reader reader = new Reader(payload);
+        while (reader.has_more()) {
+            final String name = reader.string();
+            timers.put(name, reader.zigzag());
+        }
+        return timers;
+    }
+
+    /**
+     * every scheme is sent in full, even if it came from a macro
+     */
+    public static byte[] encode(SignalCommand command) {
+        final Writer writer = new Writer();
+        for (long target : command.getTargets()) {
+            writer.varint(target);
+            final CompiledScheme scheme = command.get(target);
+            if (scheme == null) {
+                writer.varint(OFF);
+                continue;
+            }
+            writer.varint(SCHEME);
+            writer.zigzag(scheme.getRepeat() == CompiledScheme.FOREVER ? -1 : scheme.getRepeat());
+            writer.varint(scheme.length());
+            for (int segment = 0; segment < scheme.length(); segment++)
+                writer.zigzag(scheme.isOn(segment) ? scheme.duration(segment) : -scheme.duration(segment));
+        }
+        return writer.toByteArray();
+    }
+
+    public static byte[] encode(Map<String, Long> timers) {
+        final Writer writer = new Writer();
+        timers.forEach((name, seconds) -> {
+            writer.string(name);
+            writer.zigzag(seconds);
+        });
+        return writer.toByteArray();
+    }
+
+    /**
+     * @return what the commander needs to know to send binary commands. The pins are ordered by their id.
+     */
+    public static JSONObject announce(PinHandler pinHandler) {
+        return new JSONObject()
+                .put("version", VERSION)
+                .put("commands", new JSONArray().put("visual" + SUFFIX).put("acoustic" + SUFFIX).put("timers" + SUFFIX))
+                .put("pins", new JSONArray(pinHandler.getPin_names()));
+    }
+
+    private static final class Reader {
+        private final byte[] in;
+        private int pos;
+
+        private Reader(byte[] in) {
+            this.in = in;
+            if (in.length == 0) throw new IllegalArgumentException("empty payload");
+            if (in[0] != VERSION) throw new IllegalArgumentException("unsupported version " + in[0]);
+            pos = 1;
+        }
+
+        private boolean has_more() {
+            return pos < in.length;
+        }
+
+        private long varint() {
+            long value = 0L;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= in.length) throw new IllegalArgumentException("truncated payload");
+                final byte b = in[pos++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+            throw new IllegalArgumentException("varint too long");
+        }
+
+        private long zigzag() {
+            final long n = varint();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        /**
+         * a length that must fit into the rest of the payload
+         */
+        private int count() {
+            final long count = varint();
+            if (count > in.length - pos) throw new IllegalArgumentException("truncated payload");
+            return (int) count;
+        }
+
+        private String string() {
+            final int length = count();
+            final String s = new String(in, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+
+    private static final class Writer {
+        private byte[] out = new byte[32];
+        private int size = 0;
+
+        private Writer() {
+            out[size++] = VERSION;
+        }
+
+        private void varint(long value) {
+            if (size + 10 > out.length) out = Arrays.copyOf(out, out.length * 2);
+            while ((value & ~0x7fL) != 0L) {
+                out[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out[size++] = (byte) value;
+        }
+
+        private void zigzag(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        private void string(String s) {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            if (size + bytes.length > out.length) out = Arrays.copyOf(out, Math.max(out.length * 2, size + bytes.length));
+            System.arraycopy(bytes, 0, out, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(out, size);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package de.flashheart.rlgagent.hardware;
+
+import de.flashheart.rlgagent.misc.Configs;
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * The parts of an agent the tests need, without any hardware behind them: a workspace with its {@link Configs}, the
+ * {@link OutputBanks} and pin handlers with the usual pins. Use it as a rule or, outside of JUnit, open it on a
+ * directory and close it when done. Either way the handler threads are stopped at the end.
+ */
+public class AgentFixture extends ExternalResource implements AutoCloseable {
+    private final TemporaryFolder workspace = new TemporaryFolder();
+    private final Consumer<Configs> settings;
+    private final List<PinHandler> handlers = new ArrayList<>();
+    private Configs configs;
+    private OutputBanks banks;
+    private PinHandler pins;
+
+    public AgentFixture() {
+        this(configs -> {
+        });
+    }
+
+    /**
+     * @param settings applied to the configs before anything else is created, e.g. pin groups
+     */
+    public AgentFixture(Consumer<Configs> settings) {
+        this.settings = settings;
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        workspace.create();
+        open(workspace.getRoot());
+    }
+
+    @Override
+    protected void after() {
+        close();
+        workspace.delete();
+    }
+
+    /**
+     * @param dir becomes the workspace of the agent
+     */
+    public AgentFixture open(File dir) throws IOException {
+        System.setProperty("workspace", dir.getPath());
+        configs = new Configs();
+        settings.accept(configs);
+        banks = new OutputBanks();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        for (PinHandler handler : handlers) handler.shutdown();
+        handlers.clear();
+        pins = null;
+    }
+
+    public Configs getConfigs() {
+        return configs;
+    }
+
+    public OutputBanks getBanks() {
+        return banks;
+    }
+
+    /**
+     * @return a running pin handler with all pins of an agent. Created on the first call.
+     */
+    public PinHandler pins() {
+        if (pins == null) pins = with_pins(new PinHandler(configs, new SignalClock(), banks), Configs.ALL_PINS);
+        return pins;
+    }
+
+    /**
+     * for handlers that are subclassed by a test. They are shut down with the fixture.
+     *
+     * @param handler created with the configs and banks of this fixture
+     * @param names   of the pins to add
+     * @return the handler
+     */
+    public <T extends PinHandler> T with_pins(T handler, String... names) {
+        handlers.add(handler);
+        for (String pin : names)
+            handler.add(new MyPin(pin, configs, Optional.empty(), Optional.empty(), banks, -1, -1));
+        return handler;
+    }
+}
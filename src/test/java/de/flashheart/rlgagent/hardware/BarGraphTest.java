@@ -0,0 +1,20 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BarGraphTest {
+    @Test
+    public void a_finished_bar_is_full() {
+        VariableTable variables = new VariableTable(slot -> {
+        });
+        BarGraph bar = new BarGraph("bar:remaining:4", variables);
+        final int slot = variables.slot("bar:remaining:4");
+        bar.crossed(7);
+        bar.finished();
+        assertEquals("████", variables.get(slot));
+        bar.cleared();
+        assertEquals("    ", variables.get(slot));
+    }
+}
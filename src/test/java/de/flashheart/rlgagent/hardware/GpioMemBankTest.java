@@ -0,0 +1,83 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A regular file, one page long, stands in for /dev/gpiomem.
+ */
+public class GpioMemBankTest {
+    private static final int GPSET0 = 0x1c;
+    private static final int GPCLR0 = 0x28;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File device() throws IOException {
+        File device = folder.newFile("gpiomem");
+        try (RandomAccessFile file = new RandomAccessFile(device, "rw")) {
+            file.setLength(4096);
+        }
+        return device;
+    }
+
+    private static int register(File device, int offset) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(device, "r")) {
+            ByteBuffer word = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            file.getChannel().read(word, offset);
+            return word.getInt(0);
+        }
+    }
+
+    @Test
+    public void one_write_per_register_and_tick() throws IOException {
+        File device = device();
+        GpioMemBank bank = new GpioMemBank(device);
+        bank.stage(17, true);
+        bank.stage(27, true);
+        bank.stage(18, false);
+        bank.stage(22, true);
+        bank.stage(22, false); // the last state of a tick wins
+        bank.flush();
+
+        assertEquals((1 << 17) | (1 << 27), register(device, GPSET0));
+        assertEquals((1 << 18) | (1 << 22), register(device, GPCLR0));
+        assertEquals(2, bank.toJson().getLong("register_writes"));
+    }
+
+    @Test
+    public void only_changed_registers_are_written() throws IOException {
+        File device = device();
+        GpioMemBank bank = new GpioMemBank(device);
+        bank.flush(); // nothing staged
+        assertEquals(0, bank.toJson().getLong("flushes"));
+
+        bank.stage(4, true);
+        bank.flush();
+        assertEquals(1 << 4, register(device, GPSET0));
+        assertEquals(0, register(device, GPCLR0));
+        assertEquals(1, bank.toJson().getLong("register_writes"));
+    }
+
+    @Test
+    public void flushed_through_the_output_banks() throws IOException {
+        File device = device();
+        OutputBanks banks = new OutputBanks();
+        banks.add(new GpioMemBank(device));
+        banks.getGpiomem().get().stage(GpioMemBank.bcm(0), true); // wiringPi 0 is BCM 17
+        banks.getGpiomem().get().stage(GpioMemBank.bcm(1), false); // wiringPi 1 is BCM 18
+        banks.flush();
+
+        assertEquals(1 << 17, register(device, GPSET0));
+        assertEquals(1 << 18, register(device, GPCLR0));
+    }
+}
@@ -0,0 +1,170 @@
+package de.flashheart.rlgagent.hardware;
+
+import com.pi4j.io.i2c.I2CDevice;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs both write paths against a simulated PCF8574 backpack with an HD44780 (already in 4 bit mode) behind it. The
+ * simulation doesn't sleep for the bus. It adds up how long the transfers would take at 100 kHz instead.
+ */
+public class I2CLCDTest {
+    private static final String[] SCREEN = new String[]{
+            "Zeit: 09:59",
+            "Team rot    120",
+            "Team blau    95",
+            "Spieler uebrig: 12"
+    };
+
+    @Test
+    public void both_paths_show_the_same() {
+        for (boolean bulk : new boolean[]{false, true}) {
+            SimulatedBackpack backpack = new SimulatedBackpack();
+            I2CLCD lcd = new I2CLCD(backpack, 20, 4, bulk);
+            for (int line = 1; line <= 4; line++) lcd.update(SCREEN[line - 1], line);
+            lcd.update("Zeit: 09:58", 1); // only one cell changes
+            String[] expected = Arrays.copyOf(SCREEN, 4);
+            expected[0] = "Zeit: 09:58";
+            for (int line = 0; line < 4; line++) expected[line] = String.format("%-20s", expected[line]);
+            assertArrayEquals("bulk " + bulk, expected, backpack.rows(20, 4));
+        }
+    }
+
+    @Test
+    public void bulk_writes_are_faster() {
+        double old_path = chars_per_second(false);
+        double bulk = chars_per_second(true);
+        assertTrue(String.format("%.0f vs %.0f chars/s", old_path, bulk), bulk > 5 * old_path);
+    }
+
+    /**
+     * the time of the calls plus the time on the bus
+     */
+    private double chars_per_second(boolean bulk) {
+        SimulatedBackpack backpack = new SimulatedBackpack();
+        I2CLCD lcd = new I2CLCD(backpack, 20, 4, bulk);
+        long chars = 0;
+        long start = System.nanoTime();
+        for (int screen = 0; screen < 2; screen++) {
+            lcd.invalidate();
+            for (int line = 1; line <= 4; line++) lcd.update(SCREEN[line - 1], line);
+            chars += 4 * 20;
+        }
+        long nanos = System.nanoTime() - start + backpack.bus_nanos;
+        return chars * 1e9 / nanos;
+    }
+
+    /**
+     * P0 = RS, P1 = RW, P2 = EN, P3 = backlight, P4..P7 = D4..D7. The HD44780 latches a nibble when EN falls.
+     */
+    private static class SimulatedBackpack implements I2CDevice {
+        private static final long NANOS_PER_BYTE = 90_000L; // 9 clocks at 100 kHz
+        private static final int[] ROW_OFFSETS = new int[]{0x00, 0x40, 0x14, 0x54};
+        private final byte[] ddram = new byte[0x80];
+        private int port, address, high_nibble = -1;
+        private long bus_nanos;
+
+        private void transfer(byte[] data, int offset, int size) {
+            bus_nanos += (1 + size) * NANOS_PER_BYTE; // the address byte comes first
+            for (int i = offset; i < offset + size; i++) {
+                int next = data[i] & 0xff;
+                if ((port & 0x04) != 0 && (next & 0x04) == 0) latch(port);
+                port = next;
+            }
+        }
+
+        private void latch(int port) {
+            if (high_nibble < 0) {
+                high_nibble = port & 0xf0;
+                return;
+            }
+            int value = high_nibble | (port >> 4);
+            high_nibble = -1;
+            if ((port & 0x01) != 0) ddram[address++ & 0x7f] = (byte) value;
+            else if ((value & 0x80) != 0) address = value & 0x7f;
+        }
+
+        private String[] rows(int cols, int rows) {
+            String[] lines = new String[rows];
+            for (int row = 0; row < rows; row++) lines[row] = new String(ddram, ROW_OFFSETS[row], cols);
+            return lines;
+        }
+
+        @Override
+        public int getAddress() {
+            return 0x27;
+        }
+
+        @Override
+        public void write(byte b) {
+            transfer(new byte[]{b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int size) {
+            transfer(buffer, offset, size);
+        }
+
+        @Override
+        public void write(byte[] buffer) {
+            transfer(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public void write(int address, byte b) {
+            transfer(new byte[]{(byte) address, b}, 0, 2);
+        }
+
+        @Override
+        public void write(int address, byte[] buffer, int offset, int size) {
+            byte[] data = new byte[size + 1];
+            data[0] = (byte) address;
+            System.arraycopy(buffer, offset, data, 1, size);
+            transfer(data, 0, data.length);
+        }
+
+        @Override
+        public void write(int address, byte[] buffer) {
+            write(address, buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read() {
+            return port;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int size) {
+            return 0;
+        }
+
+        @Override
+        public int read(int address) {
+            return port;
+        }
+
+        @Override
+        public int read(int address, byte[] buffer, int offset, int size) {
+            return 0;
+        }
+
+        @Override
+        public void ioctl(long command, int value) {
+        }
+
+        @Override
+        public void ioctl(long command, ByteBuffer data, IntBuffer offsets) {
+        }
+
+        @Override
+        public int read(byte[] writeBuffer, int writeOffset, int writeSize, byte[] readBuffer, int readOffset, int readSize) {
+            return 0;
+        }
+    }
+}
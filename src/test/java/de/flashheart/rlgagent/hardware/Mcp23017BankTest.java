@@ -0,0 +1,99 @@
+package de.flashheart.rlgagent.hardware;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CDevice;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Mcp23017BankTest {
+    private static final int LCD = 0x27, MCP = 0x20;
+
+    private final LinkedBlockingQueue<byte[]> written = new LinkedBlockingQueue<>(); // register, OLATA, OLATB
+    private final CountDownLatch lcd_busy = new CountDownLatch(1);
+    private final CountDownLatch lcd_done = new CountDownLatch(1);
+    private volatile boolean unplugged;
+
+    /**
+     * the LCD holds the bus for 50ms with every write. The MCP23017 remembers its register writes.
+     */
+    private I2CDevice device(int address) {
+        return (I2CDevice) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{I2CDevice.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("write")) return method.getReturnType() == int.class ? 0 : null;
+            if (address == LCD) {
+                lcd_busy.countDown();
+                Thread.sleep(50);
+                lcd_done.countDown();
+            } else if (unplugged) throw new IOException("unplugged");
+            else { // write(register, buffer, offset, size)
+                final byte[] buffer = (byte[]) args[1];
+                written.put(new byte[]{((Integer) args[0]).byteValue(), buffer[0], buffer[1]});
+            }
+            return null;
+        });
+    }
+
+    private I2CBusManager manager() {
+        return new I2CBusManager(new I2CBus() {
+            @Override
+            public I2CDevice getDevice(int address) {
+                return device(address);
+            }
+
+            @Override
+            public int getBusNumber() {
+                return 1;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @Test
+    public void flush_does_not_wait_for_the_lcd() throws Exception {
+        I2CBusManager manager = manager();
+        I2CDevice lcd = manager.getDevice(LCD, I2CBusManager.Priority.DISPLAY);
+        Mcp23017Bank bank = new Mcp23017Bank(manager.getDevice(MCP, I2CBusManager.Priority.SIGNAL), MCP);
+        new Thread(() -> {
+            try {
+                lcd.write(new byte[60], 0, 60);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }).start();
+        assertTrue(lcd_busy.await(1, TimeUnit.SECONDS));
+
+        bank.stage(0, true);
+        bank.stage(9, true);
+        bank.flush();
+        assertEquals("the LCD is still on the bus", 1L, lcd_done.getCount());
+
+        byte[] olat = written.poll(1, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[]{0x14, 0x01, 0x02}, olat);
+        assertEquals(0L, lcd_done.getCount());
+    }
+
+    @Test
+    public void a_failed_write_is_repeated_by_itself() throws Exception {
+        I2CBusManager manager = manager();
+        Mcp23017Bank bank = new Mcp23017Bank(manager.getDevice(MCP, I2CBusManager.Priority.SIGNAL), MCP);
+        unplugged = true;
+        bank.stage(3, true);
+        bank.flush();
+        for (int i = 0; i < 100 && bank.toJson().getLong("errors") == 0; i++) Thread.sleep(10);
+        assertTrue(bank.toJson().getLong("errors") > 0);
+
+        unplugged = false; // nobody flushes from here on
+        assertArrayEquals(new byte[]{0x14, 0x08, 0x00}, written.poll(5, TimeUnit.SECONDS));
+    }
+}
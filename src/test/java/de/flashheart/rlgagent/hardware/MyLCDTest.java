@@ -0,0 +1,71 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MyLCDTest {
+    @Rule
+    public AgentFixture agent = new AgentFixture();
+
+    private final List<TimerEngine.Subscription> subscribed = new ArrayList<>();
+    private final List<TimerEngine.Subscription> unsubscribed = new ArrayList<>();
+    private MyLCD lcd;
+
+    @Before
+    public void setUp() throws Exception {
+        lcd = new MyLCD(agent.getConfigs(), Collections.emptyList(), new SignalClock()) {
+            @Override
+            public TimerEngine.Subscription subscribe(String timer, double[] ratios, TimerEngine.ThresholdListener listener) {
+                TimerEngine.Subscription subscription = super.subscribe(timer, ratios, listener);
+                subscribed.add(subscription);
+                return subscription;
+            }
+
+            @Override
+            public void unsubscribe(TimerEngine.Subscription subscription) {
+                unsubscribed.add(subscription);
+                super.unsubscribe(subscription);
+            }
+        };
+    }
+
+    @Test
+    public void bars_are_dropped_with_their_last_page() {
+        lcd.setLine("page1", 1, "${bar:remaining}");
+        lcd.setLine("page2", 4, "${bar:remaining}"); // the same bar
+        assertEquals(1, subscribed.size());
+
+        lcd.delPage("page1");
+        assertEquals(0, unsubscribed.size()); // still on page2
+        lcd.delPage("page2");
+        assertEquals(subscribed, unsubscribed);
+    }
+
+    @Test
+    public void bars_are_dropped_on_init() {
+        lcd.setLine("page1", 1, "${bar:remaining}");
+        lcd.setLine("page1", 2, "${bar:respawn}");
+        assertEquals(2, subscribed.size());
+        lcd.init();
+        assertEquals(2, unsubscribed.size());
+    }
+
+    @Test
+    public void bars_are_dropped_with_their_last_line() {
+        lcd.setLine("page1", 1, "${bar:remaining}");
+        lcd.setLine("page2", 1, "${bar:respawn}");
+        lcd.setLine("page1", 1, "Zeit: ${remaining}"); // the bar is gone from the line
+        assertEquals(1, unsubscribed.size());
+        assertEquals(subscribed.get(0), unsubscribed.get(0));
+        lcd.setLine("page2", 1, "${bar:remaining}"); // another bar on the same line
+        assertEquals(3, subscribed.size());
+        assertEquals(subscribed.get(1), unsubscribed.get(1));
+    }
+}
@@ -0,0 +1,73 @@
+package de.flashheart.rlgagent.hardware;
+
+import de.flashheart.rlgagent.misc.Configs;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two LEDs blink every 5ms while two other threads keep sending commands for the remaining pins, about 1000 commands
+ * per second each. That is far more than any commander sends. The edges of the blinking LEDs must stay on time.
+ */
+public class PinHandlerJitterTest {
+    private static final long FLOOD_MILLIS = 2000L;
+    private static final int FLOODERS = 2;
+    private static final long PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // the median must not move at all. the tail is generous, so a busy build machine doesn't fail the test.
+    private static final long MAX_P50_US = 1024L;
+    private static final long MAX_P99_US = 16384L;
+
+    @Rule
+    public AgentFixture agent = new AgentFixture();
+
+    @Test
+    public void edges_stay_on_time_under_a_command_flood() throws Exception {
+        final PinHandler pinHandler = agent.pins();
+
+        final JSONObject blink = new JSONObject().put("repeat", -1).put("scheme", new JSONArray().put(5).put(-5));
+        pinHandler.parse_incoming(new JSONObject().put(Configs.OUT_LED_WHITE, blink).put(Configs.OUT_LED_BLUE, blink));
+        Thread.sleep(200L); // warm up
+        pinHandler.getJitter().reset();
+
+        final JSONObject[] commands = new JSONObject[]{
+                new JSONObject().put(Configs.OUT_LED_RED, "fast").put(Configs.OUT_LED_GREEN, "off"),
+                new JSONObject().put(Configs.OUT_LED_RED, "off").put(Configs.OUT_SIREN1, "single_buzz"),
+                new JSONObject().put(PinHandler.SIR_ALL, "off").put(Configs.OUT_LED_YELLOW, new JSONObject().put("repeat", 3).put("scheme", new JSONArray().put(25).put(-25)))
+        };
+        final AtomicBoolean flooding = new AtomicBoolean(true);
+        final AtomicLong sent = new AtomicLong();
+        final List<Thread> flooders = new ArrayList<>();
+        for (int f = 0; f < FLOODERS; f++) {
+            Thread flooder = new Thread(() -> {
+                for (int i = 0; flooding.get(); i++) {
+                    pinHandler.parse_incoming(commands[i % commands.length]);
+                    sent.incrementAndGet();
+                    LockSupport.parkNanos(PAUSE_NANOS);
+                }
+            }, "flooder" + f);
+            flooders.add(flooder);
+            flooder.start();
+        }
+        Thread.sleep(FLOOD_MILLIS);
+        flooding.set(false);
+        for (Thread flooder : flooders) flooder.join();
+
+        final JitterHistogram jitter = pinHandler.getJitter();
+        pinHandler.off();
+        // the blinking pins switch every 5ms. both pins share a tick, so there are about 400 ticks in 2s.
+        assertTrue("ticks " + jitter.getCount(), jitter.getCount() >= 200);
+        assertTrue("commands " + sent.get(), sent.get() >= 1000L);
+        assertTrue(jitter.toJson().toString(), jitter.percentile(50) <= MAX_P50_US);
+        assertTrue(jitter.toJson().toString(), jitter.percentile(99) <= MAX_P99_US);
+    }
+}
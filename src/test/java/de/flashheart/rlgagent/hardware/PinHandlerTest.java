@@ -0,0 +1,46 @@
+package de.flashheart.rlgagent.hardware;
+
+import de.flashheart.rlgagent.misc.Configs;
+import de.flashheart.rlgagent.misc.PayloadDecoder;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PinHandlerTest {
+    @Rule
+    public AgentFixture agent = new AgentFixture(configs -> configs.put(Configs.PIN_GROUPS, "team_red:red,sir1 solo:red ghosts:wht,nowhere sirens:sir1,sir2,sir3,sir4,buzzer red_team:sir1,red"));
+
+    private PinHandler pinHandler;
+
+    @Before
+    public void setUp() {
+        pinHandler = agent.pins();
+    }
+
+    @Test
+    public void groups_need_two_pins() {
+        assertEquals(pinHandler.resolve(Configs.OUT_LED_RED) | pinHandler.resolve(Configs.OUT_SIREN1), pinHandler.resolve("team_red"));
+        assertEquals(0L, pinHandler.resolve("solo"));
+        assertEquals(0L, pinHandler.resolve("ghosts")); // only one of its pins is known
+    }
+
+    @Test
+    public void groups_need_a_mask_of_their_own() {
+        assertEquals(0L, pinHandler.resolve("sirens")); // that's sir_all
+        assertEquals(0L, pinHandler.resolve("red_team")); // that's team_red
+        assertEquals(pinHandler.resolve(Configs.OUT_LED_RED) | pinHandler.resolve(Configs.OUT_SIREN1), pinHandler.resolve("team_red"));
+    }
+
+    @Test
+    public void a_single_pin_wins_over_its_group() {
+        SignalCommand command = PayloadDecoder.signals(new JSONObject().put(Configs.OUT_LED_RED, "fast").put("team_red", "off"), pinHandler);
+        assertEquals(2, command.getTargets().size());
+        assertNull(command.get(pinHandler.resolve("team_red")));
+        assertSame(pinHandler.getScheme_library().get("fast"), command.get(pinHandler.resolve(Configs.OUT_LED_RED)));
+    }
+}
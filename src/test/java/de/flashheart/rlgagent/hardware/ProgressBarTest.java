@@ -0,0 +1,69 @@
+package de.flashheart.rlgagent.hardware;
+
+import de.flashheart.rlgagent.misc.Configs;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressBarTest {
+    @Rule
+    public AgentFixture agent = new AgentFixture();
+
+    private final List<Object> played = new ArrayList<>();
+    private PinHandler pinHandler;
+
+    @Before
+    public void setUp() {
+        pinHandler = agent.with_pins(new PinHandler(agent.getConfigs(), new SignalClock(), agent.getBanks()) {
+            @Override
+            public void play(SignalCommand command) {
+                played.add(command);
+            }
+
+            @Override
+            public void play(ChoreographyCommand command) {
+                played.add(command);
+            }
+
+            @Override
+            public void parse_choreography(JSONObject incoming) {
+                throw new AssertionError("steps must be compiled in advance");
+            }
+        }, Configs.ALL_LEDS);
+    }
+
+    @Test
+    public void steps_are_compiled_once() {
+        ProgressBar bar = new ProgressBar(pinHandler, PinHandler.LED_ALL);
+        assertEquals(14, bar.getThresholds().length); // 15 steps for 5 LEDs
+        bar.crossed(3);
+        bar.crossed(4);
+        bar.crossed(3);
+        assertEquals(3, played.size());
+        assertTrue(played.get(0) instanceof ChoreographyCommand);
+        assertSame(played.get(0), played.get(2));
+    }
+
+    @Test
+    public void goodbye_on_expiry_and_on_clear() {
+        ProgressBar bar = new ProgressBar(pinHandler, PinHandler.LED_ALL);
+        bar.crossed(14);
+        bar.finished();
+        bar.crossed(3);
+        bar.cleared();
+        assertEquals(4, played.size());
+        for (int i : new int[]{1, 3}) {
+            SignalCommand goodbye = (SignalCommand) played.get(i);
+            assertEquals(pinHandler.resolve(PinHandler.LED_ALL), goodbye.getMask());
+            assertEquals(pinHandler.getScheme_library().get("very_long"), goodbye.get(goodbye.getMask()));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package de.flashheart.rlgagent.hardware;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimerEngineTest {
+    private static final TimerEngine.Listener IGNORED = new TimerEngine.Listener() {
+        @Override
+        public void changed(TimerEngine.Timer timer, String text) {
+        }
+
+        @Override
+        public void expired(TimerEngine.Timer timer) {
+        }
+    };
+
+    private final List<Integer> crossed = new ArrayList<>();
+    private int cleared;
+    private final TimerEngine.ThresholdListener listener = new TimerEngine.ThresholdListener() {
+        @Override
+        public void crossed(int count) {
+            crossed.add(count);
+        }
+
+        @Override
+        public void finished() {
+        }
+
+        @Override
+        public void cleared() {
+            cleared++;
+        }
+    };
+
+    @Test
+    public void listeners_are_only_called_on_tick() {
+        TimerEngine timers = new TimerEngine(new SignalClock());
+        timers.set("remaining", 60000L);
+        timers.subscribe_ratios("remaining", new double[]{0.5}, listener); // on a running timer
+        assertEquals(Collections.emptyList(), crossed);
+        timers.tick(IGNORED);
+        assertEquals(Collections.singletonList(0), crossed);
+
+        timers.set("remaining", 30000L); // starts over
+        assertEquals(1, crossed.size());
+        timers.tick(IGNORED);
+        assertEquals(2, crossed.size());
+
+        timers.clear();
+        assertEquals(0, cleared);
+        timers.tick(IGNORED);
+        assertEquals(1, cleared);
+        assertEquals(2, crossed.size());
+    }
+}
@@ -0,0 +1,171 @@
+package de.flashheart.rlgagent.misc;
+
+import de.flashheart.rlgagent.hardware.AgentFixture;
+import de.flashheart.rlgagent.hardware.PinHandler;
+import de.flashheart.rlgagent.hardware.SignalCommand;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Compares the ways to decode the command payloads. Every payload is decoded both ways first and the results are
+ * checked for equality. Then each way is timed on its own.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=de.flashheart.rlgagent.misc.PayloadBenchmark -Dexec.classpathScope=test
+ * </pre>
+ * <p>
+ * The signal payloads are built from all scheme macros, sent as inline schemes and by name. Payloads with a duplicate
+ * key must be rejected both ways. The second part compares the sizes and decoding times of JSON and the
+ * {@link WireFormat}, for every scheme macro sent inline.
+ */
+public class PayloadBenchmark {
+    private final Configs configs;
+    private final PinHandler pinHandler;
+    private final PrintStream out;
+    private final int warmup, rounds;
+
+    public PayloadBenchmark(Configs configs, PinHandler pinHandler, PrintStream out, int warmup, int rounds) {
+        this.configs = configs;
+        this.pinHandler = pinHandler;
+        this.out = out;
+        this.warmup = warmup;
+        this.rounds = rounds;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File workspace = System.getProperties().containsKey("workspace") ?
+                new File(System.getProperty("workspace")) : Files.createTempDirectory("rlgagent").toFile();
+        try (AgentFixture agent = new AgentFixture().open(workspace)) {
+            new PayloadBenchmark(agent.getConfigs(), agent.pins(), System.out, 20000, 50000).run();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void run() {
+        final JSONObject macros = configs.getScheme_macros();
+        final List<byte[]> signals = new ArrayList<>();
+        final List<byte[]> inline = new ArrayList<>();
+        macros.keySet().forEach(name -> {
+            inline.add(bytes(new JSONObject().put("wht", macros.getJSONObject(name))));
+            signals.add(inline.get(inline.size() - 1));
+            signals.add(bytes(new JSONObject().put("led_all", "off").put("red", name)));
+        });
+        final List<byte[]> timers = new ArrayList<>();
+        timers.add(bytes(new JSONObject().put("remaining", 600).put("respawn", 30)));
+        timers.add(bytes(new JSONObject().put(PayloadDecoder.CLEAR_ALL, "true")));
+        final List<byte[]> vars = new ArrayList<>();
+        vars.add(bytes(new JSONObject().put("score", 120).put("team", "Grün").put("ratio", 1.5).put("overtime", true)));
+        final List<byte[]> pages = new ArrayList<>();
+        pages.add(bytes(new JSONObject()
+                .put("page0", new String[]{"${agversion}b${agbuild}", "Zeit: ${remaining}", "${bar:remaining}", "Spieler übrig: ${alive}"})
+                .put("page1", new String[]{"Team \"rot\"", "${score}", "", "Ä Ö Ü ß °"})));
+
+        out.printf("%-8s %8s %10s %12s %12s %8s%n", "command", "payloads", "avg_bytes", "org.json_ns", "stream_ns", "speedup");
+        compare("signals", signals, payload -> PayloadDecoder.signals(tree(payload), pinHandler), payload -> PayloadDecoder.signals(payload, pinHandler));
+        compare("timers", timers, payload -> PayloadDecoder.timers(tree(payload)), PayloadDecoder::timers);
+        compare("vars", vars, payload -> PayloadDecoder.vars(tree(payload)), PayloadDecoder::vars);
+        compare("paged", pages, payload -> PayloadDecoder.pages(tree(payload)), PayloadDecoder::pages);
+
+        reject("signals", duplicates("{\"red\": \"fast\", \"red\": \"off\"}", "{\"wht\": {\"repeat\": 1, \"scheme\": [50, -50], \"repeat\": 2}}",
+                "{\"progress\": \"remaining\", \"target\": {\"a\": 1, \"a\": 2}}", "{\"nowhere\": [{\"a\": 1, \"a\": 2}]}"), payload -> PayloadDecoder.signals(tree(payload), pinHandler), payload -> PayloadDecoder.signals(payload, pinHandler));
+        reject("timers", duplicates("{\"remaining\": 600, \"respawn\": 30, \"remaining\": 10}"), payload -> PayloadDecoder.timers(tree(payload)), PayloadDecoder::timers);
+        reject("vars", duplicates("{\"score\": 1, \"score\": {\"x\": 1}}", "{\"team\": {\"x\": 1, \"x\": 2}}"), payload -> PayloadDecoder.vars(tree(payload)), PayloadDecoder::vars);
+        reject("paged", duplicates("{\"page0\": [\"a\"], \"page0\": [\"b\"]}"), payload -> PayloadDecoder.pages(tree(payload)), PayloadDecoder::pages);
+
+        out.println();
+        out.printf("%-8s %8s %10s %10s %12s %12s %12s%n", "command", "payloads", "json_bytes", "bin_bytes", "org.json_ns", "stream_ns", "binary_ns");
+        wire("signals", inline, payload -> PayloadDecoder.signals(tree(payload), pinHandler), payload -> PayloadDecoder.signals(payload, pinHandler),
+                command -> WireFormat.encode((SignalCommand) command), payload -> WireFormat.signals(payload, pinHandler));
+        wire("timers", timers, payload -> PayloadDecoder.timers(tree(payload)), PayloadDecoder::timers,
+                timer_map -> WireFormat.encode((Map<String, Long>) timer_map), WireFormat::timers);
+    }
+
+    /**
+     * every JSON payload is encoded into the wire format and decoded again
+     */
+    private void wire(String command, List<byte[]> json, Function<byte[], Object> org_json, Function<byte[], Object> stream,
+                      Function<Object, byte[]> encoder, Function<byte[], Object> binary) {
+        final List<byte[]> encoded = new ArrayList<>();
+        long json_bytes = 0L, bin_bytes = 0L;
+        for (byte[] payload : json) {
+            final Object expected = stream.apply(payload);
+            final byte[] bin = encoder.apply(expected);
+            final Object actual = binary.apply(bin);
+            if (!expected.equals(actual))
+                throw new IllegalStateException(command + ": " + actual + " differs from " + expected + " for " + new String(payload, StandardCharsets.UTF_8));
+            encoded.add(bin);
+            json_bytes += payload.length;
+            bin_bytes += bin.length;
+        }
+        out.printf("%-8s %8d %10d %10d %12.0f %12.0f %12.0f%n", command, json.size(), json_bytes, bin_bytes,
+                time(json, org_json), time(json, stream), time(encoded, binary));
+    }
+
+    private void compare(String command, List<byte[]> payloads, Function<byte[], Object> org_json, Function<byte[], Object> stream) {
+        long bytes = 0L;
+        for (byte[] payload : payloads) {
+            bytes += payload.length;
+            final Object expected = org_json.apply(payload);
+            final Object actual = stream.apply(payload);
+            if (!expected.equals(actual))
+                throw new IllegalStateException(command + ": " + actual + " differs from " + expected + " for " + new String(payload, StandardCharsets.UTF_8));
+        }
+        final double tree_ns = time(payloads, org_json);
+        final double stream_ns = time(payloads, stream);
+        out.printf("%-8s %8d %10d %12.0f %12.0f %7.1fx%n", command, payloads.size(), bytes / payloads.size(), tree_ns, stream_ns, tree_ns / stream_ns);
+    }
+
+    /**
+     * both decoders must throw a JSONException for every payload
+     */
+    private void reject(String command, List<byte[]> payloads, Function<byte[], Object> org_json, Function<byte[], Object> stream) {
+        for (byte[] payload : payloads) {
+            for (Function<byte[], Object> decoder : Arrays.asList(org_json, stream)) {
+                try {
+                    decoder.apply(payload);
+                    throw new IllegalStateException(command + ": accepted " + new String(payload, StandardCharsets.UTF_8));
+                } catch (JSONException expected) {
+                    // that's the point
+                }
+            }
+        }
+        out.printf("%-8s %8d rejected%n", command, payloads.size());
+    }
+
+    private static List<byte[]> duplicates(String... payloads) {
+        final List<byte[]> list = new ArrayList<>();
+        for (String payload : payloads) list.add(payload.getBytes(StandardCharsets.UTF_8));
+        return list;
+    }
+
+    /**
+     * @return ns per payload
+     */
+    private double time(List<byte[]> payloads, Function<byte[], Object> decoder) {
+        int sink = 0;
+        for (int i = 0; i < warmup; i++) sink += decoder.apply(payloads.get(i % payloads.size())).hashCode();
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) sink += decoder.apply(payloads.get(i % payloads.size())).hashCode();
+        final long elapsed = System.nanoTime() - start;
+        if (sink == 42) out.print(""); // keeps the results alive
+        return (double) elapsed / rounds;
+    }
+
+    private static JSONObject tree(byte[] payload) {
+        return new JSONObject(payload.length == 0 ? "{}" : new String(payload, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] bytes(JSONObject json) {
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,29 @@
+package de.flashheart.rlgagent.misc;
+
+import de.flashheart.rlgagent.hardware.AgentFixture;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Only the checks of the benchmark. Every payload must decode to the same command, no matter how it is decoded.
+ */
+public class PayloadBenchmarkTest {
+    @Rule
+    public AgentFixture agent = new AgentFixture();
+
+    @Test
+    public void all_decoders_agree() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PayloadBenchmark(agent.getConfigs(), agent.pins(), new PrintStream(out, true, "UTF-8"), 1, 1).run(); // throws on a difference
+        String report = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        for (String command : new String[]{"signals", "timers", "vars", "paged"})
+            assertTrue(report, report.contains(command));
+        assertTrue(report, report.contains("rejected"));
+    }
+}